@@ -0,0 +1,89 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: BandedImage.java
+/*
+/* BandedImage creates BufferedImage objects for handing pixels to ImageIO
+/* writers without a full-size copy of the image. Packed buffers are wrapped as
+/* they are, and other sources are read through a data buffer holding only a
+/* band of rows, which is refilled from the source as the writer moves down
+/* the image, so writing an image costs a band of memory instead of a second
+/* copy of the image.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class BandedImage {
+
+    // number of rows held at a time
+    public static final int BAND_ROWS = 64;
+
+    // red, green and blue masks of packed pixels, alpha is dropped
+    private static final int[] MASKS = { 0xff0000, 0xff00, 0xff };
+
+    // interface for source that copies rows of packed ARGB values into the
+    // start of dest
+    public interface Rows {
+        void copy(int y0, int rows, int[] dest);
+    }
+
+    // data buffer computing the band of rows around each accessed element on
+    // demand, read-only
+    private static class BandBuffer extends DataBuffer {
+        private final int width;
+        private final int height;
+        private final Rows source;
+        private final int[] band;
+        // first row held, negative until the first access
+        private int bandY = -1;
+        private int bandRows = 0;
+
+        private BandBuffer(int width, int height, Rows source) {
+            super(DataBuffer.TYPE_INT, width * height);
+            this.width = width;
+            this.height = height;
+            this.source = source;
+            this.band = new int[width * Math.min(BAND_ROWS, height)];
+        }
+
+        public int getElem(int bank, int i) {
+            int y = i / width;
+            if (y < bandY || y >= bandY + bandRows) {
+                // writers move down the image, some move up
+                bandY = (y < bandY) ? Math.max(0, y - BAND_ROWS + 1) : y;
+                bandRows = Math.min(BAND_ROWS, height - bandY);
+                source.copy(bandY, bandRows, band);
+            }
+            return band[i - bandY * width];
+        }
+
+        public void setElem(int bank, int i, int val) {
+            throw new UnsupportedOperationException("banded images are read-only");
+        }
+    }
+
+    // RGB image sharing packed ARGB buffer, alpha is dropped
+    public static BufferedImage wrap(int[] argb, int width, int height) {
+        return image(new DataBufferInt(argb, width * height), width, height);
+    }
+
+    // RGB image reading rows from source a band at a time, alpha is dropped
+    public static BufferedImage banded(int width, int height, Rows source) {
+        return image(new BandBuffer(width, height, source), width, height);
+    }
+
+    // RGB image of packed pixels held in buffer
+    private static BufferedImage image(DataBuffer buffer, int width, int height) {
+        DirectColorModel model = new DirectColorModel(24, MASKS[0], MASKS[1], MASKS[2]);
+        WritableRaster raster = Raster.createWritableRaster(new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, MASKS), buffer, null);
+        return new BufferedImage(model, raster, false, null);
+    }
+}
@@ -0,0 +1,161 @@
+import java.util.stream.IntStream;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: BlendKernels.java
+/*
+/* BlendKernels composite any number of layers stored as packed ARGB arrays in
+/* row-major order. The darken, lighten and normal blends match the
+/* corresponding Pixel blends exactly, but work on primitive values in a tight
+/* loop without allocating, and large images are split into bands that are
+/* blended in parallel. Premultiplied composites are converted back to straight
+/* alpha with integer arithmetic only.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class BlendKernels {
+
+    // number of pixels per band when blending in parallel
+    private static final int BAND = 1 << 16;
+
+    // interface for kernel that blends a range of pixels
+    private interface RangeKernel {
+        void apply(int from, int to);
+    }
+
+    // blend single color over run of destination pixels according to darken
+    // blend mode
+    public static void darkenSpan(int[] dest, int from, int length, int s) {
+        for (int k = from; k < from + length; k++) {
+            dest[k] = darken(dest[k], s);
+        }
+    }
+
+    // blend single color over run of destination pixels according to lighten
+    // blend mode
+    public static void lightenSpan(int[] dest, int from, int length, int s) {
+        for (int k = from; k < from + length; k++) {
+            dest[k] = lighten(dest[k], s);
+        }
+    }
+
+    // darken blend of two packed pixels, matching Pixel.blendDarken
+    public static int darken(int d, int s) {
+        // if either pixel is transparent, keep other pixel
+        if ((s >>> 24) == 0) {
+            return d;
+        }
+        if ((d >>> 24) == 0) {
+            return s;
+        }
+        // minimum of every component, averaged alpha
+        int a = ((d >>> 24) + (s >>> 24)) >> 1;
+        int r = Math.min((d >> 16) & 0xff, (s >> 16) & 0xff);
+        int g = Math.min((d >> 8) & 0xff, (s >> 8) & 0xff);
+        int b = Math.min(d & 0xff, s & 0xff);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    // lighten blend of two packed pixels, matching Pixel.blendLighten
+    public static int lighten(int d, int s) {
+        // if either pixel is transparent, keep other pixel
+        if ((s >>> 24) == 0) {
+            return d;
+        }
+        if ((d >>> 24) == 0) {
+            return s;
+        }
+        // maximum of every component, averaged alpha
+        int a = ((d >>> 24) + (s >>> 24)) >> 1;
+        int r = Math.max((d >> 16) & 0xff, (s >> 16) & 0xff);
+        int g = Math.max((d >> 8) & 0xff, (s >> 8) & 0xff);
+        int b = Math.max(d & 0xff, s & 0xff);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    // blend layers according to z-index and alpha (later layers given higher
+    // z), matching Pixel.blendNormal, null layers are skipped and the first
+    // layer is blended over transparent black if it is missing
+    public static void normal(int[][] layers, int[] dest) {
+        bands(dest.length, (from, to) -> {
+            for (int k = from; k < to; k++) {
+                int d = 0;
+                for (int l = 0; l < layers.length; l++) {
+                    if (layers[l] == null) {
+                        continue;
+                    }
+                    int s = layers[l][k];
+                    if (l == 0) {
+                        d = s;
+                        continue;
+                    }
+                    int sa = s >>> 24;
+                    int da = d >>> 24;
+                    int r = (int) (((s >> 16) & 0xff) * (double) sa / 255 + ((d >> 16) & 0xff) * (1 - (double) sa / 255) * (double) da / 255);
+                    int g = (int) (((s >> 8) & 0xff) * (double) sa / 255 + ((d >> 8) & 0xff) * (1 - (double) sa / 255) * (double) da / 255);
+                    int b = (int) ((s & 0xff) * (double) sa / 255 + (d & 0xff) * (1 - (double) sa / 255) * (double) da / 255);
+                    int a = (int) (sa + da * (1 - (double) sa / 255));
+                    d = (clamp(a) << 24) | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+                }
+                dest[k] = d;
+            }
+        });
+    }
+
+    // convert premultiplied alpha ARGB values to straight alpha in place,
+    // leaving fully transparent values as they are
+    public static void unpremultiply(int[] argb) {
+        bands(argb.length, (from, to) -> {
+            for (int k = from; k < to; k++) {
+                int v = argb[k];
+                int a = v >>> 24;
+                if (a == 255) {
+                    continue;
+                }
+                // transparent values keep their color
+                if (a == 0) {
+                    continue;
+                }
+                // fixed-point reciprocal of alpha, rounded to nearest
+                int recip = UNPREMULTIPLY[a];
+                argb[k] = (a << 24)
+                    | (clamp((((v >> 16) & 0xff) * recip + 0x8000) >> 16) << 16)
+                    | (clamp((((v >> 8) & 0xff) * recip + 0x8000) >> 16) << 8)
+                    | clamp(((v & 0xff) * recip + 0x8000) >> 16);
+            }
+        });
+    }
+
+    // 16.16 fixed-point 255 / alpha for every alpha value
+    private static final int[] UNPREMULTIPLY = new int[256];
+
+    static {
+        for (int a = 1; a < 256; a++) {
+            UNPREMULTIPLY[a] = (255 << 16) / a;
+        }
+    }
+
+    // multiply two 8-bit values and divide by 255, rounded to nearest
+    public static int mul255(int x, int y) {
+        int t = x * y + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+
+    // run kernel over pixel range, in parallel bands for large images
+    private static void bands(int length, RangeKernel kernel) {
+        if (length <= BAND) {
+            kernel.apply(0, length);
+            return;
+        }
+        IntStream.range(0, (length + BAND - 1) / BAND).parallel().forEach(band ->
+            kernel.apply(band * BAND, Math.min(length, (band + 1) * BAND))
+        );
+    }
+
+    // clamp function to keep component in gamut
+    private static int clamp(int v) {
+        return (v > 255) ? 255 : (v < 0) ? 0 : v;
+    }
+}
@@ -0,0 +1,221 @@
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: CellGrid.java
+/*
+/* CellGrid objects hold the average color of every pixelation area of a single
+/* level, which together with the cell size fully determines the radiused
+/* channels and composite of that level. Grids serialize to a small deflated
+/* binary file of one RGB record per cell, and are rendered back to pixels by
+/* Comp at the original or any other resolution.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class CellGrid {
+
+    // identifies cell grid files and the version of their layout
+    private static final int MAGIC = 0x47524401;
+
+    // width of image the grid covers
+    private final int width;
+    // height of image the grid covers
+    private final int height;
+    // side length of cells
+    private final int size;
+    // number of cells across and down, partial cells on the right and bottom
+    // edges included
+    private final int columns;
+    private final int rows;
+    // packed RGB average of each cell in row-major order
+    private final int[] cells;
+
+    // constructor
+    public CellGrid(int width, int height, int size, int[] cells) {
+        this.width = width;
+        this.height = height;
+        this.size = size;
+        this.columns = (width + size - 1) / size;
+        this.rows = (height + size - 1) / size;
+        if (cells.length != columns * rows) {
+            throw new IllegalArgumentException("expected " + (columns * rows) + " cells, got " + cells.length);
+        }
+        this.cells = cells;
+    }
+
+    // constructor from cell averages as computed by ImageData.cellAverages
+    public CellGrid(int width, int height, int size, Pixel[][] averages) {
+        this(width, height, size, new int[((height + size - 1) / size) * ((width + size - 1) / size)]);
+        for (int row = 0, k = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col++, k++) {
+                cells[k] = averages[row][col].toInt() & 0xffffff;
+            }
+        }
+    }
+
+    // grid of cell averages of image
+    public static CellGrid of(ImageData imgData, int size) {
+        return new CellGrid(imgData.getWidth(), imgData.getHeight(), size, imgData.cellAverages(size));
+    }
+
+    // getter for width
+    public int getWidth() {
+        return this.width;
+    }
+
+    // getter for height
+    public int getHeight() {
+        return this.height;
+    }
+
+    // getter for cell size
+    public int getSize() {
+        return this.size;
+    }
+
+    // getter for number of cells across
+    public int getColumns() {
+        return this.columns;
+    }
+
+    // getter for number of cells down
+    public int getRows() {
+        return this.rows;
+    }
+
+    // average color of cell
+    public Pixel getCell(int row, int col) {
+        int rgb = cells[row * columns + col];
+        return new Pixel((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff, 255);
+    }
+
+    // cell averages laid out as returned by ImageData.cellAverages
+    public Pixel[][] toAverages() {
+        Pixel[][] averages = new Pixel[height / size + 1][width / size + 1];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col++) {
+                averages[row][col] = getCell(row, col);
+            }
+        }
+        return averages;
+    }
+
+    // same grid with the cells overlapping rectangle of image recomputed
+    public CellGrid patched(ImageData imgData, Rectangle roi) {
+        int[] patched = cells.clone();
+        for (int row = Math.max(0, roi.y / size); row < rows && row * size < roi.y + roi.height; row++) {
+            for (int col = Math.max(0, roi.x / size); col < columns && col * size < roi.x + roi.width; col++) {
+                patched[row * columns + col] = imgData.cellAverage(size, row, col).toInt() & 0xffffff;
+            }
+        }
+        return new CellGrid(width, height, size, patched);
+    }
+
+    // same grid with the cells whose average in current grid of the same
+    // layout differs by more than threshold in any component replaced, so
+    // small changes over time never accumulate beyond threshold
+    public CellGrid tracking(CellGrid current, int threshold) {
+        int[] tracked = cells.clone();
+        for (int k = 0; k < cells.length; k++) {
+            int a = cells[k];
+            int b = current.cells[k];
+            if (Math.abs(((a >> 16) & 0xff) - ((b >> 16) & 0xff)) > threshold
+                || Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff)) > threshold
+                || Math.abs((a & 0xff) - (b & 0xff)) > threshold) {
+                tracked[k] = b;
+            }
+        }
+        return new CellGrid(width, height, size, tracked);
+    }
+
+    // pixel bounds of each cell overlapping rectangle whose average differs
+    // in other grid of the same layout
+    public List<Rectangle> changedCells(CellGrid other, Rectangle roi) {
+        List<Rectangle> changed = new ArrayList<>();
+        for (int row = Math.max(0, roi.y / size); row < rows && row * size < roi.y + roi.height; row++) {
+            for (int col = Math.max(0, roi.x / size); col < columns && col * size < roi.x + roi.width; col++) {
+                if (cells[row * columns + col] != other.cells[row * columns + col]) {
+                    changed.add(new Rectangle(col * size, row * size, Math.min(size, width - col * size), Math.min(size, height - row * size)));
+                }
+            }
+        }
+        return changed;
+    }
+
+    // serialize grid as header followed by three bytes per cell
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(size);
+        byte[] bytes = new byte[cells.length * 3];
+        for (int k = 0; k < cells.length; k++) {
+            bytes[3 * k] = (byte) (cells[k] >> 16);
+            bytes[3 * k + 1] = (byte) (cells[k] >> 8);
+            bytes[3 * k + 2] = (byte) cells[k];
+        }
+        out.write(bytes);
+    }
+
+    // deserialize grid written by write for an image of given dimensions at
+    // given cell size, returns null if stream does not hold a grid of this
+    // version, header values are checked before any cells are allocated
+    public static CellGrid read(DataInputStream in, int width, int height, int size) throws IOException {
+        if (in.readInt() != MAGIC) {
+            return null;
+        }
+        int gridWidth = in.readInt();
+        int gridHeight = in.readInt();
+        int gridSize = in.readInt();
+        if (gridWidth != width || gridHeight != height || gridSize != size) {
+            throw new IOException("expected grid " + width + "x" + height + ", size " + size
+                + ", got " + gridWidth + "x" + gridHeight + ", size " + gridSize);
+        }
+        int[] cells = new int[((height + size - 1) / size) * ((width + size - 1) / size)];
+        byte[] bytes = new byte[cells.length * 3];
+        in.readFully(bytes);
+        for (int k = 0; k < cells.length; k++) {
+            cells[k] = ((bytes[3 * k] & 0xff) << 16) | ((bytes[3 * k + 1] & 0xff) << 8) | (bytes[3 * k + 2] & 0xff);
+        }
+        return new CellGrid(width, height, size, cells);
+    }
+
+    // write grid to deflated file
+    public void write(File file) throws IOException {
+        // streams only end deflaters they create themselves
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(new BufferedOutputStream(new FileOutputStream(file)), deflater))) {
+            write(out);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // read grid for an image of given dimensions at given cell size from
+    // deflated file, returns null if file does not hold a grid of this version
+    public static CellGrid read(File file, int width, int height, int size) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new BufferedInputStream(new FileInputStream(file))))) {
+            return read(in, width, height, size);
+        }
+    }
+
+    // utility stringifying function
+    public String toString() {
+        return "grid " + width + "x" + height + ", size " + size + ", " + columns + "x" + rows + " cells";
+    }
+}
@@ -39,10 +39,18 @@ public class ColorCode  {
             System.out.println("* first argument: filename");
             System.out.println("* second argument: resolution depth");
             System.out.println("* third argument: version");
+            System.out.println("* fourth argument (optional): such as \"proxy4\", first run on input subsampled by given factor");
             return;
         }
 
         try {
+            if (args.length > 3 && args[3].toLowerCase().startsWith("proxy")) {
+                // preview on a subsampled decode first, cell size follows
+                // from the width of the proxy
+                ImageData proxyData = ImageData.read(new File(args[0]), Integer.parseInt(args[3].substring(5)));
+                compCMY(proxyData, Integer.parseInt(args[1]), args[0].substring(0, args[0].indexOf('.', 0)), args[2] + "-proxy");
+                compRGB(proxyData, Integer.parseInt(args[1]), args[0].substring(0, args[0].indexOf('.', 0)), args[2] + "-proxy");
+            }
             // read input image into BuffereImage Object
             BufferedImage inImg = ImageIO.read(new File(args[0]));
             // marshall buffere image object into ImageData object
@@ -227,12 +235,9 @@ public class ColorCode  {
     // pixels operations
     public static void separate(Pixel mult, Pixel add, ImageData imgData) {
         long start = System.currentTimeMillis();
-        // map to apply componsnt-wise pixel operations on every pixel in
-        // ImageData
-        ImageData.Map map = (p) -> {
-            p.setPixel(p.mult(mult).add(add));
-        };
-        imgData.applyMap(map);
+        // tabulate component-wise pixel operations once, then apply table
+        // to every pixel in ImageData
+        imgData.applyLookupTable(LookupTable.multAdd(mult, add));
         System.out.println("separate finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
     }
 
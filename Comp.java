@@ -1,8 +1,21 @@
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
 import javax.imageio.ImageIO;
 
 /*----------------------------------------------------------------------------*/
@@ -29,8 +42,41 @@ public class Comp {
     // used to determine how to calculate pixel intensity during radiusing
     public enum Mode { RGB, CMY };
 
-    // prime numbers used to mitigate interference in composited image
-    private static int[] randomLevels = { 1, 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37 };
+    // used to determine where circles are placed within pixelation area
+    public enum Anchor { CENTER, TOP, LEFT, RIGHT };
+
+    // recycles image storage across levels, color spaces and runs
+    private static final ImagePool pool = new ImagePool(512L * 1024 * 1024);
+
+    // channel names, separation tables and circle anchors of each color space
+    private static final String[] CMY_CHANNELS = { "C", "M", "Y" };
+    private static final String[] RGB_CHANNELS = { "R", "G", "B" };
+    private static final LookupTable[] CMY_TABLES = {
+        LookupTable.multAdd(new Pixel(255, 0, 0), new Pixel(0, 255, 255)),
+        LookupTable.multAdd(new Pixel(0, 255, 0), new Pixel(255, 0, 255)),
+        LookupTable.multAdd(new Pixel(0, 0, 255), new Pixel(255, 255, 0))
+    };
+    private static final LookupTable[] RGB_TABLES = {
+        LookupTable.multAdd(new Pixel(255, 0, 0), new Pixel(0, 255)),
+        LookupTable.multAdd(new Pixel(0, 255, 0), new Pixel(0, 255)),
+        LookupTable.multAdd(new Pixel(0, 0, 255), new Pixel(0, 255))
+    };
+    private static final Anchor[] ANCHORS = { Anchor.TOP, Anchor.LEFT, Anchor.RIGHT };
+
+    // most colors of a palette PNG
+    private static final int PALETTE_COLORS = 256;
+
+    // receives composite of the levels computed so far in progressive mode,
+    // argb is reused for the next level so must be copied to be kept
+    public interface Preview {
+        void apply(Mode mode, LevelPlanner.Level level, int[] argb, int width, int height);
+    }
+
+    // samples per side of output pixels on circle edges
+    private static final int SUPERSAMPLES = 4;
+    // distance from pixel center to its corners, beyond which a circle edge
+    // no longer crosses the pixel
+    private static final double HALF_DIAGONAL = Math.sqrt(0.5);
 
     public static void main(String[] args) {
         if (args.length < 1) {
@@ -43,247 +89,546 @@ public class Comp {
             System.out.println("* second argument: resolution depth");
             System.out.println("* third argument: version");
             System.out.println("* fourth argument: \"prime\" or \"binary\" levels");
+            System.out.println("* fifth argument (optional): budget per color space, e.g. \"2000ms\" or \"512mb\", the coarsest level is computed even if it exceeds the budget");
+            System.out.println("* any further argument \"final\": write only the final composites");
+            System.out.println("* any further argument \"cache\": reuse level results from previous runs, kept in .comp-cache");
+            System.out.println("* any further argument \"palette\": write images of at most " + PALETTE_COLORS + " colors as palette PNGs instead of JPEGs");
+            System.out.println("* any further argument \"qoi\": write channels and composites of every level as lossless QOI files");
+            System.out.println("* any further argument \"svg\": write circles of every level as SVG instead of rasterizing them");
+            System.out.println("* any further argument such as \"4x\": render at given scale, writing only the final composites");
+            System.out.println("* any further argument \"progressive\": composite coarsest level first, overwriting a preview per color space after each level");
+            System.out.println("* any further argument \"gif\": append the composite after each level to an animated GIF per color space, levels are still written as usual, with \"final\" or a scale levels are composited coarsest first as in progressive mode");
+            System.out.println("* any further argument such as \"proxy4\": first run on input subsampled by given factor, then at full resolution");
+            System.out.println("* a directory as filename: run over its images as frames of a sequence in name order, writing final composites to <directory>-<version>, only a budget, \"palette\", \"final\" and a threshold apply");
+            System.out.println("* any further argument such as \"threshold3\": in a sequence, rerender only cells whose average changed by more than given amount");
             return;
         }
 
         try {
-            // read input image into BuffereImage Object
-            BufferedImage inImg = ImageIO.read(new File(args[0]));
-            // marshall buffere image object into ImageData object
-            ImageData imgData = new ImageData(inImg);
-            // run CMY and RGB color space filters sequentially
-            compCMY(imgData, Integer.parseInt(args[1]), args[0].substring(0, args[0].indexOf('.', 0)), (args[2] != null) ? args[2] : "", args[3].equals("prime"));
-            compRGB(imgData, Integer.parseInt(args[1]), args[0].substring(0, args[0].indexOf('.', 0)), (args[2] != null) ? args[2] : "", args[3].equals("prime"));
+            File inFile = new File(args[0]);
+            String fileName = (inFile.isDirectory()) ? args[0] : args[0].substring(0, args[0].indexOf('.', 0));
+            String version = (args[2] != null) ? args[2] : "";
+            // choose levels to compute within budget, if one was given
+            double budgetMillis = LevelPlanner.UNLIMITED_MILLIS;
+            long budgetBytes = LevelPlanner.UNLIMITED_BYTES;
+            int proxy = 1;
+            int threshold = 0;
+            LevelAnimation animation = null;
+            CompOptions options = new CompOptions();
+            // options that only apply to a single image, rejected for
+            // sequences
+            List<String> imageOnly = new ArrayList<>();
+            for (int a = 4; a < args.length; a++) {
+                String option = args[a].toLowerCase();
+                if (option.startsWith("threshold")) {
+                    threshold = Integer.parseInt(option.substring(9));
+                } else if (option.startsWith("proxy")) {
+                    proxy = Integer.parseInt(option.substring(5));
+                    imageOnly.add(args[a]);
+                } else if (option.equals("final")) {
+                    options.setWriteLevels(false);
+                } else if (option.endsWith("x")) {
+                    double scale = (option.matches("\\d+(\\.\\d+)?x")) ? Double.parseDouble(option.substring(0, option.length() - 1)) : 0;
+                    if (scale <= 0) {
+                        System.out.println("* output scale must be given as a positive number followed by \"x\", e.g. \"4x\" or \"0.5x\", got \"" + args[a] + "\"");
+                        return;
+                    }
+                    options.setScale(scale);
+                    imageOnly.add(args[a]);
+                } else if (option.equals("progressive")) {
+                    // one preview per color space, so the RGB pass does not
+                    // overwrite the finished CMY preview
+                    String previewPrefix = fileName + "-" + version + "-";
+                    options.setPreview((mode, level, argb, width, height) -> {
+                        try {
+                            write(argb, width, height, previewPrefix + mode + "-preview", options.isPalette());
+                        } catch (IOException e) {
+                            System.out.println(e);
+                        }
+                    });
+                    imageOnly.add(args[a]);
+                } else if (option.equals("gif")) {
+                    animation = new LevelAnimation(fileName + "-" + version + "-levels", 500);
+                    imageOnly.add(args[a]);
+                } else if (option.equals("palette")) {
+                    options.setPalette(true);
+                } else if (option.equals("qoi")) {
+                    options.setQoi(true);
+                    imageOnly.add(args[a]);
+                } else if (option.equals("svg")) {
+                    options.setVector(true);
+                    imageOnly.add(args[a]);
+                } else if (option.equals("cache")) {
+                    options.setCache(new ResultCache(new File(".comp-cache"), 1L << 30));
+                    imageOnly.add(args[a]);
+                } else if (option.endsWith("ms")) {
+                    budgetMillis = Double.parseDouble(option.substring(0, option.length() - 2));
+                } else if (option.endsWith("mb")) {
+                    budgetBytes = Long.parseLong(option.substring(0, option.length() - 2)) << 20;
+                }
+            }
+            if (inFile.isDirectory()) {
+                // sequences write only the final composite of each frame, at
+                // input scale
+                if (!imageOnly.isEmpty()) {
+                    System.out.println("* not supported for a sequence: " + String.join(", ", imageOnly));
+                    return;
+                }
+                // frames of a sequence, planned from the first frame
+                File[] frames = FrameSequence.frames(inFile);
+                if (frames.length == 0) {
+                    System.out.println("* no frames in " + inFile);
+                    return;
+                }
+                Dimension frameSize = ImageData.readSize(frames[0]);
+                LevelPlanner.Plan plan = LevelPlanner.plan(frameSize.width, frameSize.height, Integer.parseInt(args[1]), args[3].equals("prime"), budgetMillis, budgetBytes);
+                System.out.println(plan);
+                if (!runnable(plan)) {
+                    System.exit(1);
+                }
+                new FrameSequence(plan, threshold, options).run(frames, new File(fileName + "-" + version), Integer.parseInt(args[1]));
+                return;
+            }
+            // plan for full resolution from image header alone
+            Dimension inSize = ImageData.readSize(inFile);
+            LevelPlanner.Plan plan = LevelPlanner.plan(inSize.width, inSize.height, Integer.parseInt(args[1]), args[3].equals("prime"), budgetMillis, budgetBytes);
+            System.out.println(plan);
+            if (!runnable(plan)) {
+                System.exit(1);
+            }
+            if (proxy > 1) {
+                // preview the same plan on a subsampled decode first, at
+                // roughly one over the square of the factor of the cost
+                long start = System.currentTimeMillis();
+                ImageData proxyData = ImageData.read(inFile, proxy);
+                LevelPlanner.Plan proxyPlan = plan.scaled(proxy);
+                System.out.println("proxy " + proxyPlan);
+                compCMY(proxyData, proxyPlan, fileName, version + "-proxy", options);
+                compRGB(proxyData, proxyPlan, fileName, version + "-proxy", options);
+                System.out.println("proxy finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+            }
+            // animate the full-resolution run only
+            CompOptions fullOptions = options.copy();
+            fullOptions.setAnimation(animation);
+            try {
+                // read input image into ImageData object
+                ImageData imgData = ImageData.read(inFile, 1);
+                // run CMY and RGB color space filters sequentially
+                compCMY(imgData, plan, fileName, version, fullOptions);
+                compRGB(imgData, plan, fileName, version, fullOptions);
+            } finally {
+                // terminate animations written so far even if a run fails
+                if (animation != null) {
+                    animation.close();
+                }
+            }
         } catch (IOException e) {
             System.out.println(e);
         }
     }
 
+    // reports plans that exceed their budget, and whether plan has any level
+    // to compute
+    private static boolean runnable(LevelPlanner.Plan plan) {
+        if (plan.getLevels().isEmpty()) {
+            System.out.println("* no levels to compute for requested depth and image size");
+            return false;
+        }
+        if (plan.isOverBudget()) {
+            System.out.println("* warning: coarsest level alone exceeds budget, computing it anyway");
+        }
+        return true;
+    }
+
     public static void compCMY(ImageData imgData, int levels, String fileName, String version, boolean prime) {
+        compCMY(imgData, LevelPlanner.plan(imgData.getWidth(), imgData.getHeight(), levels, prime), fileName, version);
+    }
+
+    // runs the CMY filter over the levels chosen by plan
+    public static void compCMY(ImageData imgData, LevelPlanner.Plan plan, String fileName, String version) {
+        compCMY(imgData, plan, fileName, version, new CompOptions());
+    }
+
+    // runs the CMY filter over the levels chosen by plan with given options
+    public static void compCMY(ImageData imgData, LevelPlanner.Plan plan, String fileName, String version, CompOptions options) {
+        comp(imgData, plan, fileName, version, Mode.CMY, options);
+    }
+
+    // iteratively calls appropriate filters on imgData object, outputs all
+    // channels and compositing results
+    public static void compRGB(ImageData imgData, int levels, String fileName, String version, boolean prime) {
+        compRGB(imgData, LevelPlanner.plan(imgData.getWidth(), imgData.getHeight(), levels, prime), fileName, version);
+    }
+
+    // runs the RGB filter over the levels chosen by plan
+    public static void compRGB(ImageData imgData, LevelPlanner.Plan plan, String fileName, String version) {
+        compRGB(imgData, plan, fileName, version, new CompOptions());
+    }
+
+    // runs the RGB filter over the levels chosen by plan with given options
+    public static void compRGB(ImageData imgData, LevelPlanner.Plan plan, String fileName, String version, CompOptions options) {
+        comp(imgData, plan, fileName, version, Mode.RGB, options);
+    }
+
+    // runs the filter of given color space over the levels chosen by plan,
+    // writing every channel and level composite unless only the final
+    // composite was asked for
+    private static void comp(ImageData imgData, LevelPlanner.Plan plan, String fileName, String version, Mode mode, CompOptions options) {
         long start = System.currentTimeMillis();
+        String name = "comp" + mode;
 
-        // create results array for future compositing
-        ImageData[] results = new ImageData[levels];
+        // nothing fits in plan, avoid compositing an empty set of results
+        if (plan.getLevels().isEmpty()) {
+            System.out.println(name + ": no levels planned, " + plan);
+            return;
+        }
 
-        // iterate through levels
-        for (int i = 0; i < levels; i++) {
+        int levels = plan.getRequestedLevels();
+        int width = imgData.getWidth();
+        int height = imgData.getHeight();
+        ResultCache cache = options.getCache();
+        double scale = options.getScale();
+        Preview preview = options.getPreview();
+        Preview animation = options.getAnimation();
 
-            // too many levels of depth requested, avoid out of bounds error
-            if (i > randomLevels.length) {
-                break;
+        // identify input so cached levels of earlier runs can be found
+        String input = null;
+        if (cache != null) {
+            int[] argb = imgData.toPacked(pool.packed(width * height));
+            input = ResultCache.hash(width, height, argb);
+            pool.release(argb);
+        }
+
+        // export circles of every level from cell averages alone, no pixels
+        // are rendered
+        if (options.isVector()) {
+            CellGrid[] grids = new CellGrid[levels];
+            for (LevelPlanner.Level level : plan.getLevels()) {
+                grids[level.index] = grid(imgData, input, level.size, cache);
+            }
+            try {
+                writeSvg(grids, mode, fileName + "-" + version + "-tri-" + levels + "-" + mode);
+            } catch (IOException e) {
+                System.out.println(e);
             }
+            System.out.println(name + " finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+            return;
+        }
 
-            // size of pixel post-pixelation
-            int size = ((prime) ?
-                (int) ((double) imgData.getWidth() / Math.pow(randomLevels[i], 2))
-                :
-                (int) ((double) imgData.getWidth() / Math.pow(2, i)));
+        String outName = fileName + "-" + version + "-tri-" + levels + ((mode == Mode.CMY) ? "-CMY-normalg" : "-RGB-normal");
+        if (options.isWriteLevels() && scale == 1 && preview == null) {
+            // create results array for future compositing
+            ImageData[] results = new ImageData[levels];
 
-            // max resolution for efficiency and fidelity
-            if (size < 7) {
-                break;
+            // composite of the levels so far for the animation, coarsest first
+            LayerStack frames = (animation != null) ? new LayerStack(width, height, pool.packed(width * height)) : null;
+            int[] frame = (animation != null) ? pool.packed(width * height) : null;
+
+            // iterate through planned levels
+            for (LevelPlanner.Level level : plan.getLevels()) {
+                int i = level.index;
+
+                // radiused channels of level, composited and written along
+                // with each channel
+                results[i] = level(imgData, input, level.size, mode, null, fileName + "-" + version + "-tri-" + i, options);
+
+                if (frames != null) {
+                    frames.addAbove(results[i].toPacked(frame));
+                    animation.apply(mode, level, frames.result(frame), width, height);
+                }
+            }
+            if (frames != null) {
+                pool.release(frame);
+                pool.release(frames.getBuffer());
             }
 
-            // deep copy input ImageData
-            ImageData imgDataCopy = new ImageData(
-                imgData.getHeight(),
-                imgData.getWidth(),
-                imgData.getData(),
-                imgData.getHasAlphaChannel()
-            );
-
-            // pixelate input image and return random offsets used
-            pixelateAverage(imgDataCopy, size);
-
-            // construct new ImageData objects from deep copy
-            ImageData imgDataC = new ImageData(
-                imgDataCopy.getHeight(),
-                imgDataCopy.getWidth(),
-                imgDataCopy.getData(),
-                imgDataCopy.getHasAlphaChannel()
-            );
-            ImageData imgDataM = new ImageData(
-                imgDataCopy.getHeight(),
-                imgDataCopy.getWidth(),
-                imgDataCopy.getData(),
-                imgDataCopy.getHasAlphaChannel()
-            );
-            ImageData imgDataY = new ImageData(
-                imgDataCopy.getHeight(),
-                imgDataCopy.getWidth(),
-                imgDataCopy.getData(),
-                imgDataCopy.getHasAlphaChannel()
-            );
-
-            // separate each copy of the pixelated ImageData into channels
-            // by performing component-wise multiplication and addition to each
-            // pixel (arguments one and two)
-            separate(new Pixel(255, 0, 0), new Pixel(0, 255, 255), imgDataC);
-            separate(new Pixel(0, 255, 0), new Pixel(255, 0, 255), imgDataM);
-            separate(new Pixel(0, 0, 255), new Pixel(255, 255, 0), imgDataY);
-
-            // apply radiusing filter to each ImageData object and offset
-            // depending on which function is called
-            // circleCenterOffset(imgDataCopy, size, offsets, Mode.CMY);
-            circleTop(imgDataC, size, Mode.CMY);
-            circleLeft(imgDataM, size, Mode.CMY);
-            circleRight(imgDataY, size, Mode.CMY);
+            // alpha composite (using implicity increasing z-indices) results
+            // from each level of resolution
+            ImageData imgDataRes = compositeNormal(results);
+
+            // return level results to the pool for the next run
+            for (ImageData result : results) {
+                pool.release(result);
+            }
 
             try {
-                write(imgDataC, fileName + "-" + version + "-tri-" + i + "-C");
-                write(imgDataM, fileName + "-" + version + "-tri-" + i + "-M");
-                write(imgDataY, fileName + "-" + version + "-tri-" + i + "-Y");
-                // write(imgDataCopy, fileName + "-" + version + "-tri-" + i + "-CMY-allg");
+                write(imgDataRes, outName, options.isPalette());
             } catch (IOException e) {
                 System.out.println(e);
             }
 
-            // composite three channels and radiused original image using
-            // darken blend mode
-            // results[i] = compositeDarken(new ImageData[]{ imgDataCopy, imgDataC, imgDataM, imgDataY });
-            results[i] = compositeDarken(new ImageData[]{ imgDataC, imgDataM, imgDataY });
+            // return composite to the pool for the next run
+            pool.release(imgDataRes);
+        } else {
+            // composite levels from the finest (highest z-index) down, so
+            // cells of coarser levels under tiles already made opaque by finer
+            // levels are never computed
+            int outWidth = scaled(width, scale);
+            int outHeight = scaled(height, scale);
+            LayerStack stack = new LayerStack(outWidth, outHeight, pool.packed(outWidth * outHeight));
+            List<LevelPlanner.Level> planned = plan.getLevels();
+            int[] res = pool.packed(outWidth * outHeight);
+            if (preview != null || animation != null) {
+                // composite levels from the coarsest up instead, publishing
+                // the composite after each one, so the first preview costs a
+                // single coarse level
+                for (LevelPlanner.Level level : planned) {
+                    level(grid(imgData, input, level.size, cache), mode, scale, null, res);
+                    stack.addAbove(res);
+                    int[] composite = stack.result(res);
+                    if (preview != null) {
+                        preview.apply(mode, level, composite, outWidth, outHeight);
+                    }
+                    if (animation != null) {
+                        animation.apply(mode, level, composite, outWidth, outHeight);
+                    }
+                }
+            } else {
+                for (int l = planned.size() - 1; l >= 0; l--) {
+                    level(grid(imgData, input, planned.get(l).size, cache), mode, scale, stack, res);
+                    stack.addBelow(res);
+                }
+            }
+            System.out.println(name + ": " + stack.getCoveredTiles() + " of " + stack.getTileCount() + " tiles covered");
 
+            // write packed composite directly, large output scales would not
+            // fit in memory as pixel objects
             try {
-                write(results[i], fileName + "-" + version + "-tri-" + i + "-darken");
+                write(stack.result(res), outWidth, outHeight, outName, options.isPalette());
             } catch (IOException e) {
                 System.out.println(e);
             }
+            pool.release(res);
+            pool.release(stack.getBuffer());
         }
 
-        // alpha composite (using implicity increasing z-indices) results from
-        // each level of resolution
-        ImageData imgDataRes = compositeNormal(results);
+        System.out.println(name + " finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+    }
 
+    // computes the radiused channels of a single level and writes them along
+    // with their composite under given file name prefix
+    private static ImageData level(ImageData imgData, String input, int size, Mode mode, LayerStack coverage, String prefix, CompOptions options) {
+        SparseLayer[] layers = channels(grid(imgData, input, size, options.getCache()), mode, 1, coverage);
+        String[] names = (mode == Mode.CMY) ? CMY_CHANNELS : RGB_CHANNELS;
         try {
-            write(imgDataRes, fileName + "-" + version + "-tri-" + levels + "-CMY-normalg");
+            for (int c = 0; c < layers.length; c++) {
+                intermediate(layers[c], prefix + "-" + names[c], options);
+            }
         } catch (IOException e) {
             System.out.println(e);
         }
 
-        System.out.println("compCMY finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+        // composite three channels using darken blend mode for CMY and
+        // lighten blend mode for RGB, blending only the pixels covered by
+        // spans
+        ImageData result = (mode == Mode.CMY) ? compositeDarken(layers) : compositeLighten(layers);
+
+        try {
+            intermediate(result, prefix + ((mode == Mode.CMY) ? "-darken" : "-lighten"), options);
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+        return result;
     }
 
-    // iteratively calls appropriate filters on imgData object, outputs all
-    // channels and compositing results
-    public static void compRGB(ImageData imgData, int levels, String fileName, String version, boolean prime) {
+    // computes the radiused channels of a single level at given scale and
+    // composites them into packed result without writing anything
+    private static void level(CellGrid grid, Mode mode, double scale, LayerStack coverage, int[] res) {
         long start = System.currentTimeMillis();
+        compositeSparse(channels(grid, mode, scale, coverage), mode == Mode.CMY, res);
+        System.out.println("level " + grid.getSize() + " finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+    }
 
-        // create results array for future compositing
-        ImageData[] results = new ImageData[levels];
+    // cell grid of a single level, read from cache, which may be null, when
+    // an earlier run over the same input computed it
+    private static CellGrid grid(ImageData imgData, String input, int size, ResultCache cache) {
+        if (cache == null) {
+            return new CellGrid(imgData.getWidth(), imgData.getHeight(), size, averages(imgData, size));
+        }
+        String key = ResultCache.levelKey(input, size);
+        CellGrid grid = cache.get(key, imgData.getWidth(), imgData.getHeight(), size);
+        if (grid == null) {
+            grid = new CellGrid(imgData.getWidth(), imgData.getHeight(), size, averages(imgData, size));
+            cache.put(key, grid);
+        }
+        return grid;
+    }
 
-        // iterate through results
-        for (int i = 0; i < levels; i++) {
+    // radiused channels of a single level as sparse layers at given scale,
+    // cells fully under opaque tiles of coverage are skipped
+    private static SparseLayer[] channels(CellGrid grid, Mode mode, double scale, LayerStack coverage) {
+        return channels(grid, mode, scale, coverage, null);
+    }
 
-            // too many levels of depth requested, avoid out of bounds error
-            if (i > randomLevels.length) {
-                break;
-            }
+    // radiused channels of a single level within clip rectangle at scale 1,
+    // or of the whole level at given scale if clip is null
+    private static SparseLayer[] channels(CellGrid grid, Mode mode, double scale, LayerStack coverage, Rectangle clip) {
+        Pixel[][] averages = grid.toAverages();
 
-            // size of pixel post-pixelation
-            int size = ((prime) ?
-                (int) ((double) imgData.getWidth() / Math.pow(randomLevels[i], 2))
+        // separate averages into channels by performing component-wise
+        // multiplication and addition, then emit the radiused circle of every
+        // cell directly as spans, offset depending on anchor, skipping
+        // transparent pixels entirely
+        LookupTable[] tables = (mode == Mode.CMY) ? CMY_TABLES : RGB_TABLES;
+        SparseLayer[] layers = new SparseLayer[tables.length];
+        for (int c = 0; c < tables.length; c++) {
+            layers[c] = (clip != null) ?
+                circleSparse(averages, grid.getWidth(), grid.getHeight(), grid.getSize(), tables[c], mode, ANCHORS[c], coverage, clip)
+                : (scale == 1) ?
+                circleSparse(averages, grid.getWidth(), grid.getHeight(), grid.getSize(), tables[c], mode, ANCHORS[c], coverage)
                 :
-                (int) ((double) imgData.getWidth() / Math.pow(2, i)));
-
-            // max resolution for efficiency and fidelity
-            if (size < 7) {
-                break;
-            }
+                circleCoverage(averages, grid.getWidth(), grid.getHeight(), grid.getSize(), scale, tables[c], mode, ANCHORS[c], coverage);
+        }
+        return layers;
+    }
 
-            // deep copy input ImageData
-            ImageData imgDataCopy = new ImageData(
-                imgData.getHeight(),
-                imgData.getWidth(),
-                imgData.getData(),
-                imgData.getHasAlphaChannel()
-            );
-
-            // pixelate input image and return random offsets used
-            pixelateAverage(imgDataCopy, size);
-
-            // construct new ImageData objects from deep copy
-            ImageData imgDataR = new ImageData(
-                imgDataCopy.getHeight(),
-                imgDataCopy.getWidth(),
-                imgDataCopy.getData(),
-                imgDataCopy.getHasAlphaChannel()
-            );
-            ImageData imgDataG = new ImageData(
-                imgDataCopy.getHeight(),
-                imgDataCopy.getWidth(),
-                imgDataCopy.getData(),
-                imgDataCopy.getHasAlphaChannel()
-            );
-            ImageData imgDataB = new ImageData(
-                imgDataCopy.getHeight(),
-                imgDataCopy.getWidth(),
-                imgDataCopy.getData(),
-                imgDataCopy.getHasAlphaChannel()
-            );
-
-            // separate each copy of the pixelated ImageData into channels
-            // by performing component-wise multiplication and addition to each
-            // pixel (arguments one and two)
-            separate(new Pixel(255, 0, 0), new Pixel(0, 255), imgDataR);
-            separate(new Pixel(0, 255, 0), new Pixel(0, 255), imgDataG);
-            separate(new Pixel(0, 0, 255), new Pixel(0, 255), imgDataB);
-
-            // apply radiusing filter to each ImageData object and offset
-            // depending on which function is called
-            // circleCenterOffset(imgDataCopy, size, offsets, Mode.RGB);
-            circleTop(imgDataR, size, Mode.RGB);
-            circleLeft(imgDataG, size, Mode.RGB);
-            circleRight(imgDataB, size, Mode.RGB);
+    // computes every planned level of image as a cell grid, along with the
+    // final composite, keeping both so they can be patched after edits
+    public static CompResult compose(ImageData imgData, LevelPlanner.Plan plan, Mode mode) {
+        long start = System.currentTimeMillis();
+        List<LevelPlanner.Level> planned = plan.getLevels();
+        CellGrid[] grids = new CellGrid[planned.size()];
+        for (int l = 0; l < grids.length; l++) {
+            grids[l] = CellGrid.of(imgData, planned.get(l).size);
+        }
+        CompResult result = new CompResult(mode, imgData.getWidth(), imgData.getHeight(), grids, new int[imgData.getWidth() * imgData.getHeight()]);
+        compose(result, new Rectangle(0, 0, imgData.getWidth(), imgData.getHeight()));
+        System.out.println("compose " + mode + " finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+        return result;
+    }
 
-            try {
-                write(imgDataR, fileName + "-" + version + "-tri-" + i + "-R");
-                write(imgDataG, fileName + "-" + version + "-tri-" + i + "-G");
-                write(imgDataB, fileName + "-" + version + "-tri-" + i + "-B");
-                // write(imgDataCopy, fileName + "-" + version + "-tri-" + i + "-RGB-all");
-            } catch (IOException e) {
-                System.out.println(e);
-            }
+    // recomputes the cells of every level overlapping changed rectangle of
+    // edited image, then the tiles of the composite where a changed cell is
+    // not hidden by finer levels, returns the rectangles of the composite
+    // that were recomputed
+    public static List<Rectangle> recompute(CompResult result, ImageData edited, Rectangle roi) {
+        long start = System.currentTimeMillis();
+        CellGrid[] patched = new CellGrid[result.getLevels()];
+        for (int l = 0; l < patched.length; l++) {
+            patched[l] = result.getGrid(l).patched(edited, roi);
+        }
+        List<Rectangle> recomputed = update(result, patched, roi);
+        System.out.println("recompute " + roi + " finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+        return recomputed;
+    }
 
-            // composite three channels and radiused original image using
-            // lighten blend mode
-            // results[i] = compositeLighten(new ImageData[]{ imgDataCopy, imgDataR, imgDataG, imgDataB });
-            results[i] = compositeLighten(new ImageData[]{ imgDataR, imgDataG, imgDataB });
+    // advances result to next frame of a sequence differing from the previous
+    // frame within changed rectangle, keeping the cells whose average changed
+    // by no more than threshold in any component since they were last
+    // rendered, so only the tiles of the composite under cells that moved are
+    // recomputed, returns the rectangles of the composite that were
+    // recomputed
+    public static List<Rectangle> advance(CompResult result, ImageData frame, Rectangle roi, int threshold) {
+        long start = System.currentTimeMillis();
+        CellGrid[] tracked = new CellGrid[result.getLevels()];
+        for (int l = 0; l < tracked.length; l++) {
+            CellGrid grid = result.getGrid(l);
+            tracked[l] = grid.tracking(grid.patched(frame, roi), threshold);
+        }
+        List<Rectangle> recomputed = update(result, tracked, roi);
+        System.out.println("advance " + result.getMode() + " finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+        return recomputed;
+    }
 
-            try {
-                write(results[i], fileName + "-" + version + "-tri-" + i + "-lighten");
-            } catch (IOException e) {
-                System.out.println(e);
+    // replaces the grids of result with updated grids differing only within
+    // rectangle, then recomputes the tiles of the composite where a changed
+    // cell is not hidden by finer levels
+    private static List<Rectangle> update(CompResult result, CellGrid[] updated, Rectangle roi) {
+        int tile = LayerStack.TILE_SIZE;
+        boolean[] dirty = new boolean[result.getTilesX() * result.getTilesY()];
+        for (int l = 0; l < result.getLevels(); l++) {
+            for (Rectangle cell : result.getGrid(l).changedCells(updated[l], roi)) {
+                for (int ty = cell.y / tile; ty * tile < cell.y + cell.height; ty++) {
+                    for (int tx = cell.x / tile; tx * tile < cell.x + cell.width; tx++) {
+                        if (!result.isCovered(l, tx, ty)) {
+                            dirty[ty * result.getTilesX() + tx] = true;
+                        }
+                    }
+                }
+            }
+            result.setGrid(l, updated[l]);
+        }
+        // recompute runs of dirty tiles on each row of tiles
+        List<Rectangle> recomputed = new ArrayList<>();
+        for (int ty = 0; ty < result.getTilesY(); ty++) {
+            for (int tx = 0; tx < result.getTilesX(); tx++) {
+                if (!dirty[ty * result.getTilesX() + tx]) {
+                    continue;
+                }
+                int txEnd = tx;
+                while (txEnd < result.getTilesX() && dirty[ty * result.getTilesX() + txEnd]) {
+                    txEnd++;
+                }
+                Rectangle run = new Rectangle(tx * tile, ty * tile,
+                    Math.min(txEnd * tile, result.getWidth()) - tx * tile,
+                    Math.min((ty + 1) * tile, result.getHeight()) - ty * tile);
+                compose(result, run);
+                recomputed.add(run);
+                tx = txEnd;
             }
+        }
+        return recomputed;
+    }
 
-            imgDataR = null;
-            imgDataG = null;
-            imgDataB = null;
-            imgDataCopy = null;
+    // composites levels of result from the finest down within clip rectangle
+    // aligned to tiles, writing into the same rectangle of its composite and
+    // recording the tiles hidden from each level
+    private static void compose(CompResult result, Rectangle clip) {
+        LayerStack stack = new LayerStack(clip.width, clip.height, pool.packed(clip.width * clip.height));
+        int[] res = pool.packed(clip.width * clip.height);
+        int tx0 = clip.x / LayerStack.TILE_SIZE;
+        int ty0 = clip.y / LayerStack.TILE_SIZE;
+        int tilesX = (clip.width + LayerStack.TILE_SIZE - 1) / LayerStack.TILE_SIZE;
+        int tilesY = (clip.height + LayerStack.TILE_SIZE - 1) / LayerStack.TILE_SIZE;
+        for (int l = result.getLevels() - 1; l >= 0; l--) {
+            for (int ty = 0; ty < tilesY; ty++) {
+                for (int tx = 0; tx < tilesX; tx++) {
+                    result.setCovered(l, tx0 + tx, ty0 + ty, stack.isTileCovered(tx, ty));
+                }
+            }
+            compositeSparse(channels(result.getGrid(l), result.getMode(), 1, stack, clip), result.getMode() == Mode.CMY, res);
+            stack.addBelow(res);
+        }
+        stack.result(res);
+        for (int j = 0; j < clip.height; j++) {
+            System.arraycopy(res, j * clip.width, result.getComposite(), (clip.y + j) * result.getWidth() + clip.x, clip.width);
         }
+        pool.release(res);
+        pool.release(stack.getBuffer());
+    }
 
-        // alpha composite (using implicity increasing z-indices) results from
-        // each level of resolution
-        ImageData imgDataRes = compositeNormal(results);
+    // renders composite of the radiused channels of cell grid
+    public static ImageData render(CellGrid grid, Mode mode) {
+        return render(grid, mode, 1);
+    }
 
-        try {
-            write(imgDataRes, fileName + "-" + version + "-tri-" + levels + "-RGB-normal");
-        } catch (IOException e) {
-            System.out.println(e);
-        }
+    // renders composite of the radiused channels of cell grid at given scale,
+    // circles are rasterized at output resolution with supersampled edges
+    public static ImageData render(CellGrid grid, Mode mode, double scale) {
+        long start = System.currentTimeMillis();
+        int outWidth = scaled(grid.getWidth(), scale);
+        int outHeight = scaled(grid.getHeight(), scale);
+        int[] res = pool.packed(outWidth * outHeight);
+        level(grid, mode, scale, null, res);
+        ImageData imgDataRes = pool.blank(outHeight, outWidth, false);
+        imgDataRes.fromPacked(res);
+        pool.release(res);
+        System.out.println("render " + grid + " at " + scale + "x finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+        return imgDataRes;
+    }
 
-        System.out.println("compRGB finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+    // length in output pixels of given length in input pixels
+    private static int scaled(int length, double scale) {
+        return (int) Math.round(length * scale);
     }
 
     // separates ImageData into channels using component-wise mult and add
     // pixels operations
     public static void separate(Pixel mult, Pixel add, ImageData imgData) {
         long start = System.currentTimeMillis();
-        // map to apply componsnt-wise pixel operations on every pixel in
-        // ImageData
-        ImageData.Map map = (p) -> {
-            p.setPixel(p.mult(mult).add(add));
-        };
-        imgData.applyMap(map);
+        // tabulate component-wise pixel operations once, then apply table
+        // to every pixel in ImageData
+        imgData.applyLookupTable(LookupTable.multAdd(mult, add));
         System.out.println("separate finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
     }
 
@@ -312,12 +657,18 @@ public class Comp {
 
     // pixelation filter that uses point sampling and row offsetting
     public static int[] pixelateOffset(ImageData imgData, int size) {
+        return pixelateOffset(imgData, size, ImageData.DEFAULT_SEED);
+    }
+
+    // pixelation filter that uses point sampling and row offsetting, with
+    // offsets drawn from generator seeded by seed
+    public static int[] pixelateOffset(ImageData imgData, int size, long seed) {
         long start = System.currentTimeMillis();
         // map to pixelate ImageData according to size supplied
         ImageData.CoarseMap map = (dest, src, index) -> {
             dest.setPixel(src);
         };
-        int[] offsets = imgData.applyOffsetCoarseMap(map, size);
+        int[] offsets = imgData.applyOffsetCoarseMap(map, size, ImageData.rowOffsets(imgData.getHeight(), size, seed));
         System.out.println("pixelateOffset finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
         return offsets;
     }
@@ -325,27 +676,191 @@ public class Comp {
     // pixelation filter that uses uniformly weighted averaging over
     // pixelation area and row offsetting
     public static int[] pixelateOffsetAverage(ImageData imgData, int size) {
+        return pixelateOffsetAverage(imgData, size, ImageData.DEFAULT_SEED);
+    }
+
+    // pixelation filter that uses uniformly weighted averaging over
+    // pixelation area and row offsetting, with offsets drawn from generator
+    // seeded by seed
+    public static int[] pixelateOffsetAverage(ImageData imgData, int size, long seed) {
         long start = System.currentTimeMillis();
         // map to pixelate ImageData according to size supplied
         ImageData.CoarseMap map = (dest, src, index) -> {
             dest.setPixel(src);
         };
-        int[] offsets = imgData.applyOffsetCoarseMapWithAveraging(map, size);
+        int[] offsets = imgData.applyOffsetCoarseMapWithAveraging(map, size, ImageData.rowOffsets(imgData.getHeight(), size, seed));
         System.out.println("pixelateOffsetAverage finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
         return offsets;
     }
 
+    // averages of pixelation areas of given size
+    public static Pixel[][] averages(ImageData imgData, int size) {
+        long start = System.currentTimeMillis();
+        Pixel[][] averages = imgData.cellAverages(size);
+        System.out.println("averages finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+        return averages;
+    }
+
+    // radiusing filter that emits the circle of every pixelation area as
+    // spans, using the average of the area separated into a channel by lut,
+    // only pixels within each circle's bounding box are visited
+    public static SparseLayer circleSparse(Pixel[][] averages, int width, int height, int size, LookupTable lut, Mode mode, Anchor anchor) {
+        return circleSparse(averages, width, height, size, lut, mode, anchor, null);
+    }
+
+    // radiusing filter emitting spans only for pixelation areas not entirely
+    // under opaque tiles of coverage, which may be null
+    public static SparseLayer circleSparse(Pixel[][] averages, int width, int height, int size, LookupTable lut, Mode mode, Anchor anchor, LayerStack coverage) {
+        long start = System.currentTimeMillis();
+        SparseLayer layer = circleSparse(averages, width, height, size, lut, mode, anchor, coverage, new Rectangle(0, 0, width, height));
+        System.out.println("circleSparse " + anchor + " finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+        return layer;
+    }
+
+    // radiusing filter emitting spans only within clip rectangle of the
+    // image, into a layer the size of clip with coordinates relative to it,
+    // coverage is in the same coordinates
+    public static SparseLayer circleSparse(Pixel[][] averages, int width, int height, int size, LookupTable lut, Mode mode, Anchor anchor, LayerStack coverage, Rectangle clip) {
+        SparseLayer layer = new SparseLayer(clip.width, clip.height, ((mode == Mode.CMY) ? new Pixel(255, 0) : new Pixel(0, 0)).toInt());
+        for (int cellRow = clip.y / size, y0 = cellRow * size; y0 < clip.y + clip.height; y0 += size, cellRow++) {
+            int yEnd = Math.min(size, height - y0);
+            // rows of pixelation area within clip
+            int yClipFrom = Math.max(0, clip.y - y0);
+            int yClipTo = Math.min(yEnd, clip.y + clip.height - y0);
+            for (int cellCol = clip.x / size, x0 = cellCol * size; x0 < clip.x + clip.width; x0 += size, cellCol++) {
+                int xEnd = Math.min(size, width - x0);
+                // columns of pixelation area within clip
+                int xClipFrom = Math.max(0, clip.x - x0);
+                int xClipTo = Math.min(xEnd, clip.x + clip.width - x0);
+                // area already hidden by finer levels
+                if (coverage != null && coverage.isCovered(x0 + xClipFrom - clip.x, y0 + yClipFrom - clip.y, x0 + xClipTo - clip.x, y0 + yClipTo - clip.y)) {
+                    continue;
+                }
+                // channel color of pixelation area
+                Pixel p = averages[cellRow][cellCol].copy();
+                lut.apply(p);
+                int color = p.toInt();
+                // anti-aliased edge at half opacity
+                Pixel edge = p.copy();
+                edge.setOpacity(0.5);
+                int edgeColor = edge.toInt();
+                // calculate radius based on intensity of pixel and channel mode
+                int radius = radius(p, size, mode);
+                // center of circle within pixelated area
+                double xCenter = (anchor == Anchor.LEFT) ? radius : (anchor == Anchor.RIGHT) ? size - radius : (double) size/2;
+                double yCenter = (anchor == Anchor.TOP) ? radius : (anchor == Anchor.CENTER) ? (double) size/2 : size - radius;
+                // restrict to bounding box of circle
+                int yFrom = Math.max(yClipFrom, (int) Math.floor(yCenter - radius));
+                int yTo = Math.min(yClipTo, (int) Math.ceil(yCenter + radius) + 1);
+                int xFrom = Math.max(xClipFrom, (int) Math.floor(xCenter - radius));
+                int xTo = Math.min(xClipTo, (int) Math.ceil(xCenter + radius) + 1);
+                for (int yLoc = yFrom; yLoc < yTo; yLoc++) {
+                    double dy = yLoc - yCenter;
+                    for (int xLoc = xFrom; xLoc < xTo; xLoc++) {
+                        double dx = xLoc - xCenter;
+                        double distance = Math.sqrt(dx * dx + dy * dy);
+                        if (distance > (double) radius) {
+                            // outside of radius, leave transparent
+                            continue;
+                        }
+                        // outside of radius - 1, half opacity for anti-aliasing
+                        layer.addSpan(y0 + yLoc - clip.y, x0 + xLoc - clip.x, 1, (distance > (double) radius - 1) ? edgeColor : color);
+                    }
+                }
+            }
+        }
+        return layer;
+    }
+
+    // radiusing filter that rasterizes the circle of every pixelation area at
+    // given scale of the input, pixels crossed by the edge of a circle take
+    // the fraction of their supersamples inside it as opacity, only output
+    // pixels within each circle's bounding box are visited
+    public static SparseLayer circleCoverage(Pixel[][] averages, int width, int height, int size, double scale, LookupTable lut, Mode mode, Anchor anchor, LayerStack coverage) {
+        long start = System.currentTimeMillis();
+        int outWidth = scaled(width, scale);
+        int outHeight = scaled(height, scale);
+        SparseLayer layer = new SparseLayer(outWidth, outHeight, ((mode == Mode.CMY) ? new Pixel(255, 0) : new Pixel(0, 0)).toInt());
+        for (int cellRow = 0; cellRow * size < height; cellRow++) {
+            // output rows of pixelation area
+            int y0 = scaled(cellRow * size, scale);
+            int y1 = Math.min(scaled((cellRow + 1) * size, scale), outHeight);
+            for (int cellCol = 0; cellCol * size < width; cellCol++) {
+                // output columns of pixelation area
+                int x0 = scaled(cellCol * size, scale);
+                int x1 = Math.min(scaled((cellCol + 1) * size, scale), outWidth);
+                // area vanished at this scale, or already hidden by finer
+                // levels
+                if (x1 <= x0 || y1 <= y0 || (coverage != null && coverage.isCovered(x0, y0, x1, y1))) {
+                    continue;
+                }
+                // channel color of pixelation area
+                Pixel p = averages[cellRow][cellCol].copy();
+                lut.apply(p);
+                int color = p.toInt() & 0xffffff;
+                // calculate radius based on intensity of pixel and channel mode
+                int radius = radius(p, size, mode);
+                // center of circle within pixelated area, at the middle of the
+                // input pixel it is rasterized around, in output coordinates
+                double xCenter = (anchor == Anchor.LEFT) ? radius : (anchor == Anchor.RIGHT) ? size - radius : (double) size/2;
+                double yCenter = (anchor == Anchor.TOP) ? radius : (anchor == Anchor.CENTER) ? (double) size/2 : size - radius;
+                double cx = (cellCol * size + xCenter + 0.5) * scale;
+                double cy = (cellRow * size + yCenter + 0.5) * scale;
+                double r = radius * scale;
+                // restrict to bounding box of circle
+                int yFrom = Math.max(y0, (int) Math.floor(cy - r));
+                int yTo = Math.min(y1, (int) Math.ceil(cy + r));
+                int xFrom = Math.max(x0, (int) Math.floor(cx - r));
+                int xTo = Math.min(x1, (int) Math.ceil(cx + r));
+                for (int y = yFrom; y < yTo; y++) {
+                    double dy = y + 0.5 - cy;
+                    for (int x = xFrom; x < xTo; x++) {
+                        double dx = x + 0.5 - cx;
+                        double distance = Math.sqrt(dx * dx + dy * dy);
+                        // pixels wholly inside or outside circle need no
+                        // sampling
+                        double covered = (distance <= r - HALF_DIAGONAL) ? 1
+                            : (distance >= r + HALF_DIAGONAL) ? 0
+                            : coverage(dx, dy, r);
+                        if (covered == 0) {
+                            continue;
+                        }
+                        layer.addSpan(y, x, 1, ((int) Math.round(p.a * covered) << 24) | color);
+                    }
+                }
+            }
+        }
+        System.out.println("circleCoverage " + anchor + " finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+        return layer;
+    }
+
+    // fraction of supersamples of pixel centered at offset (dx, dy) from
+    // center of circle that fall within radius
+    private static double coverage(double dx, double dy, double r) {
+        int inside = 0;
+        for (int sy = 0; sy < SUPERSAMPLES; sy++) {
+            double y = dy + (sy + 0.5) / SUPERSAMPLES - 0.5;
+            for (int sx = 0; sx < SUPERSAMPLES; sx++) {
+                double x = dx + (sx + 0.5) / SUPERSAMPLES - 0.5;
+                if (x * x + y * y <= r * r) {
+                    inside++;
+                }
+            }
+        }
+        return (double) inside / (SUPERSAMPLES * SUPERSAMPLES);
+    }
+
+    // radius of circle for pixel intensity and channel mode
+    private static int radius(Pixel p, int size, Mode mode) {
+        return (int) (((double) size / 4) + ((double) size / 4) * ((mode == Mode.CMY) ? (1 - (double) p.getMin() / 255) : (double) p.getMax() / 255));
+    }
+
     // radiusing filter relative to center
     public static void circleCenter(ImageData imgData, int size, Mode mode) {
         long start = System.currentTimeMillis();
-        // map that uses one-dimensional index to decide whether to set pixel
-        // transparent
-        ImageData.IndexedMap circleMap = (p, index) -> {
-            // calculate x and y coordinates from one-dimensional index
-            int[] index2D = imgData.index2D(index);
-            // calculate position within pixelated area
-            int xLoc = index2D[1] % size;
-            int yLoc = index2D[0] % size;
+        // map that uses position within pixelated area to decide whether to
+        // set pixel transparent
+        ImageData.CoordinateMap circleMap = (p, x, y, xLoc, yLoc) -> {
             // calculate radius based on intensity of pixel and channel mode
             int radius = (int) (((double) size / 4) + ((double) size / 4) * ((mode == Mode.CMY) ? (1 - (double) p.getMin() / 255) : (double) p.getMax() / 255));
             if (Math.sqrt(Math.abs(xLoc - (double) size/2) * Math.abs(xLoc - (double) size/2) + Math.abs(yLoc - (double) size/2) * Math.abs(yLoc - (double) size/2)) > (double) radius) {
@@ -356,21 +871,16 @@ public class Comp {
                 p.setOpacity(0.5);
             }
         };
-        imgData.applyIndexedMap(circleMap);
+        imgData.applyCoordinateMap(circleMap, size);
         System.out.println("circleCenter finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
     }
 
     // radiusing filter relative to top center
     public static void circleTop(ImageData imgData, int size, Mode mode) {
         long start = System.currentTimeMillis();
-        // map that uses one-dimensional index to decide whether to set pixel
-        // transparent
-        ImageData.IndexedMap circleMap = (p, index) -> {
-            // calculate x and y coordinates from one-dimensional index
-            int[] index2D = imgData.index2D(index);
-            // calculate position within pixelated area
-            int xLoc = index2D[1] % size;
-            int yLoc = index2D[0] % size;
+        // map that uses position within pixelated area to decide whether to
+        // set pixel transparent
+        ImageData.CoordinateMap circleMap = (p, x, y, xLoc, yLoc) -> {
             // calculate radius based on intensity of pixel and channel mode
             int radius = (int) (((double) size / 4) + ((double) size / 4) * ((mode == Mode.CMY) ? (1 - (double) p.getMin() / 255) : (double) p.getMax() / 255));
             if (Math.sqrt(Math.abs(xLoc - (double) size/2) * Math.abs(xLoc - (double) size/2) + Math.abs(yLoc - radius) * Math.abs(yLoc - radius)) > (double) radius) {
@@ -381,21 +891,16 @@ public class Comp {
                 p.setOpacity(0.5);
             }
         };
-        imgData.applyIndexedMap(circleMap);
+        imgData.applyCoordinateMap(circleMap, size);
         System.out.println("circleTop finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
     }
 
     // radiusing filter relative to bottom left
     public static void circleLeft(ImageData imgData, int size, Mode mode) {
         long start = System.currentTimeMillis();
-        // map that uses one-dimensional index to decide whether to set pixel
-        // transparent
-        ImageData.IndexedMap circleMap = (p, index) -> {
-            // calculate x and y coordinates from one-dimensional index
-            int[] index2D = imgData.index2D(index);
-            // calculate position within pixelated area
-            int xLoc = index2D[1] % size;
-            int yLoc = index2D[0] % size;
+        // map that uses position within pixelated area to decide whether to
+        // set pixel transparent
+        ImageData.CoordinateMap circleMap = (p, x, y, xLoc, yLoc) -> {
             // calculate radius based on intensity of pixel and channel mode
             int radius = (int) (((double) size / 4) + ((double) size / 4) * ((mode == Mode.CMY) ? (1 - (double) p.getMin() / 255) : (double) p.getMax() / 255));
             if (Math.sqrt(Math.abs(xLoc - radius) * Math.abs(xLoc - radius) + Math.abs(yLoc - (size - radius)) * Math.abs(yLoc - (size - radius))) > (double) radius) {
@@ -406,21 +911,16 @@ public class Comp {
                 p.setOpacity(0.5);
             }
         };
-        imgData.applyIndexedMap(circleMap);
+        imgData.applyCoordinateMap(circleMap, size);
         System.out.println("circleLeft finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
     }
 
     // radiusing filter relative to bottom right
     public static void circleRight(ImageData imgData, int size, Mode mode) {
         long start = System.currentTimeMillis();
-        // map that uses one-dimensional index to decide whether to set pixel
-        // transparent
-        ImageData.IndexedMap circleMap = (p, index) -> {
-            // calculate x and y coordinates from one-dimensional index
-            int[] index2D = imgData.index2D(index);
-            // calculate position within pixelated area
-            int xLoc = index2D[1] % size;
-            int yLoc = index2D[0] % size;
+        // map that uses position within pixelated area to decide whether to
+        // set pixel transparent
+        ImageData.CoordinateMap circleMap = (p, x, y, xLoc, yLoc) -> {
             // calculate radius based on intensity of pixel and channel mode
             int radius = (int) (((double) size / 4) + ((double) size / 4) * ((mode == Mode.CMY) ? (1 - (double) p.getMin() / 255) : (double) p.getMax() / 255));
             if (Math.sqrt(Math.abs(xLoc - (size - radius)) * Math.abs(xLoc - (size - radius)) + Math.abs(yLoc - (size - radius)) * Math.abs(yLoc - (size - radius))) > (double) radius) {
@@ -431,21 +931,16 @@ public class Comp {
                 p.setOpacity(0.5);
             }
         };
-        imgData.applyIndexedMap(circleMap);
+        imgData.applyCoordinateMap(circleMap, size);
         System.out.println("circleRight finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
     }
 
     // offset radiusing filter relative to center
     public static void circleCenterOffset(ImageData imgData, int size, int[] offsets, Mode mode) {
         long start = System.currentTimeMillis();
-        // map that uses one-dimensional index to decide whether to set pixel
-        // transparent
-        ImageData.IndexedMap circleMap = (p, index) -> {
-            // calculate x and y coordinates from one-dimensional index
-            int[] index2D = imgData.index2D(index);
-            // calculate position within pixelated area
-            int xLoc = index2D[1] % size;
-            int yLoc = index2D[0] % size;
+        // map that uses position within pixelated area to decide whether to
+        // set pixel transparent
+        ImageData.CoordinateMap circleMap = (p, x, y, xLoc, yLoc) -> {
             // calculate radius based on intensity of pixel and channel mode
             int radius = (int) (((double) size / 4) + ((double) size / 4) * ((mode == Mode.CMY) ? (1 - (double) p.getMin() / 255) : (double) p.getMax() / 255));
             if (Math.sqrt(Math.abs(xLoc - (double) size/2) * Math.abs(xLoc - (double) size/2) + Math.abs(yLoc - (double) size/2) * Math.abs(yLoc - (double) size/2)) > (double) radius) {
@@ -456,21 +951,16 @@ public class Comp {
                 p.setOpacity(0.5);
             }
         };
-        imgData.applyIndexedMapWithOffsets(circleMap, size, offsets);
+        imgData.applyCoordinateMapWithOffsets(circleMap, size, offsets);
         System.out.println("circleCenterOffset finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
     }
 
     // offset radiusing filter relative to top center
     public static void circleTopOffset(ImageData imgData, int size, int[] offsets, Mode mode) {
         long start = System.currentTimeMillis();
-        // map that uses one-dimensional index to decide whether to set pixel
-        // transparent
-        ImageData.IndexedMap circleMap = (p, index) -> {
-            // calculate x and y coordinates from one-dimensional index
-            int[] index2D = imgData.index2D(index);
-            // calculate position within pixelated area
-            int xLoc = index2D[1] % size;
-            int yLoc = index2D[0] % size;
+        // map that uses position within pixelated area to decide whether to
+        // set pixel transparent
+        ImageData.CoordinateMap circleMap = (p, x, y, xLoc, yLoc) -> {
             // calculate radius based on intensity of pixel and channel mode
             int radius = (int) (((double) size / 4) + ((double) size / 4) * ((mode == Mode.CMY) ? (1 - (double) p.getMin() / 255) : (double) p.getMax() / 255));
             if (Math.sqrt(Math.abs(xLoc - (double) size/2) * Math.abs(xLoc - (double) size/2) + Math.abs(yLoc - radius) * Math.abs(yLoc - radius)) > (double) radius) {
@@ -481,21 +971,16 @@ public class Comp {
                 p.setOpacity(0.5);
             }
         };
-        imgData.applyIndexedMapWithOffsets(circleMap, size, offsets);
+        imgData.applyCoordinateMapWithOffsets(circleMap, size, offsets);
         System.out.println("circleTopOffset finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
     }
 
     // offset radiusing filter relative to bottom left
     public static void circleLeftOffset(ImageData imgData, int size, int[] offsets, Mode mode) {
         long start = System.currentTimeMillis();
-        // map that uses one-dimensional index to decide whether to set pixel
-        // transparent
-        ImageData.IndexedMap circleMap = (p, index) -> {
-            // calculate x and y coordinates from one-dimensional index
-            int[] index2D = imgData.index2D(index);
-            // calculate position within pixelated area
-            int xLoc = index2D[1] % size;
-            int yLoc = index2D[0] % size;
+        // map that uses position within pixelated area to decide whether to
+        // set pixel transparent
+        ImageData.CoordinateMap circleMap = (p, x, y, xLoc, yLoc) -> {
             // calculate radius based on intensity of pixel and channel mode
             int radius = (int) (((double) size / 4) + ((double) size / 4) * ((mode == Mode.CMY) ? (1 - (double) p.getMin() / 255) : (double) p.getMax() / 255));
             if (Math.sqrt(Math.abs(xLoc - radius) * Math.abs(xLoc - radius) + Math.abs(yLoc - (size - radius)) * Math.abs(yLoc - (size - radius))) > (double) radius) {
@@ -506,21 +991,16 @@ public class Comp {
                 p.setOpacity(0.5);
             }
         };
-        imgData.applyIndexedMapWithOffsets(circleMap, size, offsets);
+        imgData.applyCoordinateMapWithOffsets(circleMap, size, offsets);
         System.out.println("circleLeftOffset finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
     }
 
     // offset radiusing filter relative to bottom right
     public static void circleRightOffset(ImageData imgData, int size, int[] offsets, Mode mode) {
         long start = System.currentTimeMillis();
-        // map that uses one-dimensional index to decide whether to set pixel
-        // transparent
-        ImageData.IndexedMap circleMap = (p, index) -> {
-            // calculate x and y coordinates from one-dimensional index
-            int[] index2D = imgData.index2D(index);
-            // calculate position within pixelated area
-            int xLoc = index2D[1] % size;
-            int yLoc = index2D[0] % size;
+        // map that uses position within pixelated area to decide whether to
+        // set pixel transparent
+        ImageData.CoordinateMap circleMap = (p, x, y, xLoc, yLoc) -> {
             // calculate radius based on intensity of pixel and channel mode
             int radius = (int) (((double) size / 4) + ((double) size / 4) * ((mode == Mode.CMY) ? (1 - (double) p.getMin() / 255) : (double) p.getMax() / 255));
             if (Math.sqrt(Math.abs(xLoc - (size - radius)) * Math.abs(xLoc - (size - radius)) + Math.abs(yLoc - (size - radius)) * Math.abs(yLoc - (size - radius))) > (double) radius) {
@@ -531,127 +1011,350 @@ public class Comp {
                 p.setOpacity(0.5);
             }
         };
-        imgData.applyIndexedMapWithOffsets(circleMap, size, offsets);
+        imgData.applyCoordinateMapWithOffsets(circleMap, size, offsets);
         System.out.println("circleRightOffset finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
     }
 
-    // compositing filter using darken blend mode
-    public static ImageData compositeDarken(ImageData[] imgData) {
+    // compositing filter using darken blend mode over sparse layers sharing a
+    // fill value, only pixels covered by spans are blended
+    public static ImageData compositeDarken(SparseLayer[] layers) {
         long start = System.currentTimeMillis();
-        // create empty ImageData object as destination for compositing
-        ImageData imgDataRes = new ImageData(
-            imgData[0].getHeight(),
-            imgData[0].getWidth(),
-            imgData[0].getHasAlphaChannel()
-        );
-        // map that composites images, storing result in destination ImageData
-        // created above
-        ImageData.IndexedMap map = (p, index) -> {
-            // calculate two-dimensional index to retreive corresponding pixel
-            // from other image
-            int[] index2D = imgDataRes.index2D(index);
-            // composite pixels at index from each ImageData object
-            for (int i = 0; i < imgData.length; i++) {
-                Pixel otherPixel = imgData[i].getData()[index2D[0]][index2D[1]];
-                if (i == 0) {
-                    // copy first pixel over
-                    p.setPixel(otherPixel);
-                } else {
-                    // composite other pixels with the pixel in destination
-                    // ImageData object
-                    p.setPixel(p.blendDarken(otherPixel));
-                }
-            }
-        };
-        imgDataRes.applyIndexedMap(map);
-
+        ImageData imgDataRes = compositeSparse(layers, true);
         System.out.println("compositeDarken finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
         return imgDataRes;
     }
 
-    // compositing filter using lighten blend mode
-    public static ImageData compositeLighten(ImageData[] imgData) {
+    // compositing filter using lighten blend mode over sparse layers sharing
+    // a fill value, only pixels covered by spans are blended
+    public static ImageData compositeLighten(SparseLayer[] layers) {
         long start = System.currentTimeMillis();
-        // create empty ImageData object as destination for compositing
-        ImageData imgDataRes = new ImageData(
-            imgData[0].getHeight(),
-            imgData[0].getWidth(),
-            imgData[0].getHasAlphaChannel()
-        );
-        // map that composites images, storing result in destination ImageData
-        // created above
-        ImageData.IndexedMap map = (p, index) -> {
-            // calculate two-dimensional index to retreive corresponding pixel
-            // from other image
-            int[] index2D = imgDataRes.index2D(index);
-            // composite pixels at index from each ImageData object
-            for (int i = 0; i < imgData.length; i++) {
-                Pixel otherPixel = imgData[i].getData()[index2D[0]][index2D[1]];
-                if (i == 0) {
-                    // copy first pixel over
-                    p.setPixel(otherPixel);
-                } else {
-                    // composite other pixels with the pixel in destination
-                    // ImageData object
-                    p.setPixel(p.blendLighten(otherPixel));
-                }
-            }
-        };
-        imgDataRes.applyIndexedMap(map);
-
+        ImageData imgDataRes = compositeSparse(layers, false);
         System.out.println("compositLighten finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
         return imgDataRes;
     }
 
-    // compositing filter using normal blend mode
+    // blend spans of every layer into packed result initialized to the fill
+    // value, which is where a dense composite of transparent pixels ends up
+    private static ImageData compositeSparse(SparseLayer[] layers, boolean darken) {
+        int width = layers[0].getWidth();
+        int height = layers[0].getHeight();
+        int[] res = compositeSparse(layers, darken, pool.packed(width * height));
+        ImageData imgDataRes = pool.blank(height, width, false);
+        imgDataRes.fromPacked(res);
+        pool.release(res);
+        return imgDataRes;
+    }
+
+    // blend spans of every layer into given packed result
+    private static int[] compositeSparse(SparseLayer[] layers, boolean darken, int[] res) {
+        int width = layers[0].getWidth();
+        int height = layers[0].getHeight();
+        Arrays.fill(res, 0, width * height, layers[0].getFill());
+        for (SparseLayer layer : layers) {
+            for (int j = 0; j < height; j++) {
+                int[] spans = layer.getSpans(j);
+                for (int k = 0; k < layer.getSpanCount(j) * 3; k += 3) {
+                    if (darken) {
+                        BlendKernels.darkenSpan(res, j * width + spans[k], spans[k + 1], spans[k + 2]);
+                    } else {
+                        BlendKernels.lightenSpan(res, j * width + spans[k], spans[k + 1], spans[k + 2]);
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    // compositing filter using normal blend mode in premultiplied alpha
     public static ImageData compositeNormal(ImageData[] imgData) {
+        return compositeNormal(imgData, true);
+    }
+
+    // compositing filter using normal blend mode, either in integer
+    // premultiplied alpha or floating-point straight alpha
+    public static ImageData compositeNormal(ImageData[] imgData, boolean premultiplied) {
         long start = System.currentTimeMillis();
         // create empty ImageData object as destination for compositing
-        ImageData imgDataRes = new ImageData(
+        ImageData imgDataRes = pool.blank(
             imgData[0].getHeight(),
             imgData[0].getWidth(),
             imgData[0].getHasAlphaChannel()
         );
-        // map that composites images, storing result in destination ImageData
-        // created above
-        ImageData.IndexedMap map = (p, index) -> {
-            // calculate two-dimensional index to retreive corresponding pixel
-            // from other image
-            int[] index2D = imgDataRes.index2D(index);
-            for (int i = 0; i < imgData.length; i++) {
+        // pack layers and blend them with primitive kernel, storing result in
+        // destination ImageData created above
+        if (premultiplied) {
+            // composite from the top layer down in integer premultiplied
+            // alpha, tiles stop taking work once they are opaque
+            int width = imgDataRes.getWidth();
+            int height = imgDataRes.getHeight();
+            LayerStack stack = new LayerStack(width, height, pool.packed(width * height));
+            int[] layer = pool.packed(width * height);
+            for (int i = imgData.length - 1; i >= 0; i--) {
                 if (imgData[i] != null) {
-                    Pixel otherPixel = imgData[i].getData()[index2D[0]][index2D[1]];
-                    if (i == 0) {
-                        // copy first pixel over
-                        p.setPixel(otherPixel);
-                    } else {
-                        // composite other pixels with the pixel in destination
-                        // ImageData object
-                        p.setPixel(p.blendNormal(otherPixel));
-                    }
+                    stack.addBelow(imgData[i].toPacked(layer));
                 }
             }
-        };
-        imgDataRes.applyIndexedMap(map);
+            imgDataRes.fromPacked(stack.result(layer));
+            pool.release(layer);
+            pool.release(stack.getBuffer());
+        } else {
+            compositePacked(imgData, imgDataRes, BlendKernels::normal);
+        }
 
         System.out.println("compositeNormal finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
         return imgDataRes;
     }
 
+    // pack each layer into ARGB array, blend into packed result and unpack
+    // into destination, null layers stay null
+    private static void compositePacked(ImageData[] imgData, ImageData imgDataRes, BiConsumer<int[][], int[]> kernel) {
+        int length = imgDataRes.getWidth() * imgDataRes.getHeight();
+        int[][] layers = new int[imgData.length][];
+        for (int i = 0; i < imgData.length; i++) {
+            if (imgData[i] != null) {
+                layers[i] = imgData[i].toPacked(pool.packed(length));
+            }
+        }
+        int[] res = pool.packed(length);
+        kernel.accept(layers, res);
+        imgDataRes.fromPacked(res);
+        for (int[] layer : layers) {
+            pool.release(layer);
+        }
+        pool.release(res);
+    }
+
+    // utility function for writing the circles of every level as SVG, each
+    // level is an isolated group whose circles blend with darken (CMY) or
+    // lighten (RGB) blend mode, and levels are stacked in order over the
+    // background of the color space so finer levels composite normally over
+    // coarser ones
+    public static void writeSvg(CellGrid[] grids, Mode mode, String fileName) throws IOException {
+        long start = System.currentTimeMillis();
+        CellGrid first = null;
+        for (CellGrid grid : grids) {
+            if (grid != null) {
+                first = grid;
+                break;
+            }
+        }
+        if (first == null) {
+            return;
+        }
+        LookupTable[] tables = (mode == Mode.CMY) ? CMY_TABLES : RGB_TABLES;
+        String blend = (mode == Mode.CMY) ? "darken" : "lighten";
+        File outFile = new File(fileName + ".svg");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outFile), StandardCharsets.UTF_8))) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + first.getWidth() + "\" height=\"" + first.getHeight()
+                + "\" viewBox=\"0 0 " + first.getWidth() + " " + first.getHeight() + "\">\n");
+            out.write("<style>g circle{mix-blend-mode:" + blend + "}</style>\n");
+            // background the rasterized composite shows where no circle
+            // reaches
+            out.write("<rect width=\"100%\" height=\"100%\" fill=\"" + ((mode == Mode.CMY) ? "#ffffff" : "#000000") + "\"/>\n");
+            StringBuilder sb = new StringBuilder();
+            for (CellGrid grid : grids) {
+                if (grid == null) {
+                    continue;
+                }
+                int size = grid.getSize();
+                out.write("<g style=\"isolation:isolate\">\n");
+                for (int row = 0; row < grid.getRows(); row++) {
+                    sb.setLength(0);
+                    for (int col = 0; col < grid.getColumns(); col++) {
+                        Pixel average = grid.getCell(row, col);
+                        for (int c = 0; c < tables.length; c++) {
+                            // channel color of pixelation area
+                            Pixel p = average.copy();
+                            tables[c].apply(p);
+                            int radius = radius(p, size, mode);
+                            Anchor anchor = ANCHORS[c];
+                            // center of circle within pixelated area, moved to
+                            // the middle of the pixel it is rasterized around
+                            double xCenter = (anchor == Anchor.LEFT) ? radius : (anchor == Anchor.RIGHT) ? size - radius : (double) size/2;
+                            double yCenter = (anchor == Anchor.TOP) ? radius : (anchor == Anchor.CENTER) ? (double) size/2 : size - radius;
+                            sb.append("<circle cx=\"").append(number(col * size + xCenter + 0.5))
+                                .append("\" cy=\"").append(number(row * size + yCenter + 0.5))
+                                .append("\" r=\"").append(radius)
+                                .append("\" fill=\"").append(String.format("#%06x", p.toInt() & 0xffffff))
+                                .append("\"/>\n");
+                        }
+                    }
+                    out.write(sb.toString());
+                }
+                out.write("</g>\n");
+            }
+            out.write("</svg>\n");
+        }
+        System.out.println("write " + fileName + ".svg finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+    }
+
+    // shortest decimal representation of coordinate
+    private static String number(double v) {
+        return (v == Math.rint(v)) ? Long.toString((long) v) : Double.toString(v);
+    }
+
+    // utility function for writing sparse layers with descriptive filenames,
+    // expanding spans straight into the destination image
+    public static void write(SparseLayer layer, String fileName) throws IOException {
+        write(layer, fileName, false);
+    }
+
+    // utility function for writing sparse layers, as palette PNGs if palette
+    // is set and they have few enough colors
+    public static void write(SparseLayer layer, String fileName, boolean palette) throws IOException {
+        if (palette) {
+            int[] argb = layer.toPacked(pool.packed(layer.getWidth() * layer.getHeight()));
+            write(argb, layer.getWidth(), layer.getHeight(), fileName, true);
+            pool.release(argb);
+            return;
+        }
+        long start = System.currentTimeMillis();
+        // rows are expanded from spans a band at a time as the writer reads
+        // them, alpha is dropped
+        BufferedImage outImg = BandedImage.banded(layer.getWidth(), layer.getHeight(), layer::toPacked);
+        File outFile = new File(fileName + ".jpg");
+        ImageIO.write(outImg, "jpg", outFile);
+        System.out.println("write " + fileName + ".jpg finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+    }
+
+    // utility function for writing packed ARGB pixels with descriptive
+    // filenames
+    public static void write(int[] argb, int width, int height, String fileName) throws IOException {
+        write(argb, width, height, fileName, false);
+    }
+
+    // utility function for writing packed ARGB pixels, as a palette PNG if
+    // palette is set and they have few enough colors
+    public static void write(int[] argb, int width, int height, String fileName, boolean palette) throws IOException {
+        long start = System.currentTimeMillis();
+        BufferedImage indexed = (palette) ? indexed(argb, width, height) : null;
+        if (indexed != null) {
+            ImageIO.write(indexed, "png", new File(fileName + ".png"));
+            System.out.println("write " + fileName + ".png finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+            return;
+        }
+        // writer reads pixels straight from buffer, alpha is dropped
+        BufferedImage outImg = BandedImage.wrap(argb, width, height);
+        File outFile = new File(fileName + ".jpg");
+        ImageIO.write(outImg, "jpg", outFile);
+        System.out.println("write " + fileName + ".jpg finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+    }
+
+    // utility function for writing packed ARGB pixels losslessly, alpha
+    // included, as QOI files
+    public static void writeQoi(int[] argb, int width, int height, String fileName) throws IOException {
+        long start = System.currentTimeMillis();
+        QoiCodec.write(argb, width, height, new File(fileName + ".qoi"));
+        System.out.println("write " + fileName + ".qoi finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+    }
+
+    // write channel of a level as QOI or as configured for outputs
+    private static void intermediate(SparseLayer layer, String fileName, CompOptions options) throws IOException {
+        if (!options.isQoi()) {
+            write(layer, fileName, options.isPalette());
+            return;
+        }
+        int[] argb = layer.toPacked(pool.packed(layer.getWidth() * layer.getHeight()));
+        writeQoi(argb, layer.getWidth(), layer.getHeight(), fileName);
+        pool.release(argb);
+    }
+
+    // write composite of a level as QOI or as configured for outputs
+    private static void intermediate(ImageData imgData, String fileName, CompOptions options) throws IOException {
+        if (!options.isQoi()) {
+            write(imgData, fileName, options.isPalette());
+            return;
+        }
+        int[] argb = imgData.toPacked(pool.packed(imgData.getWidth() * imgData.getHeight()));
+        writeQoi(argb, imgData.getWidth(), imgData.getHeight(), fileName);
+        pool.release(argb);
+    }
+
     // utility function for writing images with descriptive filenames
     public static void write(ImageData imgData, String fileName) throws IOException {
+        write(imgData, fileName, false);
+    }
+
+    // utility function for writing images, as palette PNGs if palette is set
+    // and they have few enough colors
+    public static void write(ImageData imgData, String fileName, boolean palette) throws IOException {
+        if (palette) {
+            int[] argb = imgData.toPacked(pool.packed(imgData.getWidth() * imgData.getHeight()));
+            write(argb, imgData.getWidth(), imgData.getHeight(), fileName, true);
+            pool.release(argb);
+            return;
+        }
         long start = System.currentTimeMillis();
-        // create BufferedImage object as destiantion
-        BufferedImage outImg = new BufferedImage(
-            imgData.getWidth(),
-            imgData.getHeight(),
-            BufferedImage.TYPE_INT_RGB
-        );
-        // marshall image object to buffered image object
-        imgData.toImage(outImg, ImageData.FileType.JPG);
+        // marshall pixels a band of rows at a time as the writer reads them,
+        // alpha is dropped
+        BufferedImage outImg = BandedImage.banded(imgData.getWidth(), imgData.getHeight(), imgData::toPacked);
         // write file
         File outFile = new File(fileName + ".jpg");
         ImageIO.write(outImg, "jpg", outFile);
         System.out.println("write " + fileName + ".jpg finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
     }
+
+    // packed pixels as an image indexing a palette of their colors, alpha
+    // dropped as in the JPEG outputs, found in a single pass over pixels,
+    // returns null once more than PALETTE_COLORS colors are seen
+    private static BufferedImage indexed(int[] argb, int width, int height) {
+        // open-addressing table of colors seen, keyed by color plus one so
+        // zero marks empty slots
+        int[] keys = new int[PALETTE_COLORS * 4];
+        byte[] slots = new byte[keys.length];
+        int[] colors = new int[PALETTE_COLORS];
+        int count = 0;
+        byte[] indices = new byte[width * height];
+        for (int k = 0, last = -1, lastIndex = 0; k < width * height; k++) {
+            int color = argb[k] & 0xffffff;
+            // runs of one color are common, skip the lookup
+            if (color != last) {
+                int slot = (color * 0x9e3779b1) >>> 22;
+                while (keys[slot] != 0 && keys[slot] != color + 1) {
+                    slot = (slot + 1) & (keys.length - 1);
+                }
+                if (keys[slot] == 0) {
+                    if (count == PALETTE_COLORS) {
+                        return null;
+                    }
+                    keys[slot] = color + 1;
+                    slots[slot] = (byte) count;
+                    colors[count++] = color;
+                }
+                last = color;
+                lastIndex = slots[slot];
+            }
+            indices[k] = (byte) lastIndex;
+        }
+
+        // fewest bits per pixel that index every color
+        int bits = (count <= 2) ? 1 : (count <= 4) ? 2 : (count <= 16) ? 4 : 8;
+        byte[] r = new byte[count];
+        byte[] g = new byte[count];
+        byte[] b = new byte[count];
+        for (int c = 0; c < count; c++) {
+            r[c] = (byte) (colors[c] >> 16);
+            g[c] = (byte) (colors[c] >> 8);
+            b[c] = (byte) colors[c];
+        }
+        IndexColorModel model = new IndexColorModel(bits, count, r, g, b);
+        if (bits == 8) {
+            BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, model);
+            System.arraycopy(indices, 0, ((DataBufferByte) img.getRaster().getDataBuffer()).getData(), 0, indices.length);
+            return img;
+        }
+        // pack several indices into each byte, leftmost pixel in the high
+        // bits, rows starting on byte boundaries
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, model);
+        byte[] packed = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        int stride = (width * bits + 7) / 8;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int bit = i * bits;
+                packed[j * stride + (bit >> 3)] |= (indices[j * width + i] & 0xff) << (8 - bits - (bit & 7));
+            }
+        }
+        return img;
+    }
 }
@@ -0,0 +1,136 @@
+/*----------------------------------------------------------------------------*/
+/*
+/* File: CompOptions.java
+/*
+/* CompOptions objects hold the settings of a single Comp run: which outputs
+/* are written and in what format, the output scale, the cache of level
+/* results and the callbacks receiving composites as levels complete. Each run
+/* is given its own options, so runs such as a proxy preview ahead of the
+/* full-resolution run never see settings meant for another.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class CompOptions {
+
+    // whether channels and composite of every level are written, otherwise
+    // levels are computed finest first and only the final composite is written
+    private boolean writeLevels = true;
+    // on-disk cache of level results between runs, null if levels are always
+    // computed
+    private ResultCache cache = null;
+    // whether levels are exported as vector shapes instead of being
+    // rasterized
+    private boolean vector = false;
+    // whether images with few enough colors are written as palette PNGs
+    // instead of JPEGs
+    private boolean palette = false;
+    // whether channels and composites of every level, which are only read
+    // back by our own tools, are written losslessly as QOI files
+    private boolean qoi = false;
+    // scale of output relative to input, levels are rasterized directly at
+    // output resolution from cell averages of the input
+    private double scale = 1;
+    // called after every level in progressive mode, null if levels are
+    // computed in whichever order is cheapest
+    private Comp.Preview preview = null;
+    // called after every level with the composite of the levels so far,
+    // coarsest first, while every level is still written as usual, null if
+    // levels are not animated
+    private Comp.Preview animation = null;
+
+    // copy of these options, to be changed for another run
+    public CompOptions copy() {
+        CompOptions copy = new CompOptions();
+        copy.writeLevels = this.writeLevels;
+        copy.cache = this.cache;
+        copy.vector = this.vector;
+        copy.palette = this.palette;
+        copy.qoi = this.qoi;
+        copy.scale = this.scale;
+        copy.preview = this.preview;
+        copy.animation = this.animation;
+        return copy;
+    }
+
+    // getter for writing of intermediate levels
+    public boolean isWriteLevels() {
+        return this.writeLevels;
+    }
+
+    // setter for writing of intermediate levels
+    public void setWriteLevels(boolean writeLevels) {
+        this.writeLevels = writeLevels;
+    }
+
+    // getter for level result cache
+    public ResultCache getCache() {
+        return this.cache;
+    }
+
+    // setter for level result cache, null to disable
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    // getter for vector export
+    public boolean isVector() {
+        return this.vector;
+    }
+
+    // setter for vector export
+    public void setVector(boolean vector) {
+        this.vector = vector;
+    }
+
+    // getter for palette output
+    public boolean isPalette() {
+        return this.palette;
+    }
+
+    // setter for palette output
+    public void setPalette(boolean palette) {
+        this.palette = palette;
+    }
+
+    // getter for QOI intermediates
+    public boolean isQoi() {
+        return this.qoi;
+    }
+
+    // setter for QOI intermediates
+    public void setQoi(boolean qoi) {
+        this.qoi = qoi;
+    }
+
+    // getter for output scale
+    public double getScale() {
+        return this.scale;
+    }
+
+    // setter for output scale
+    public void setScale(double scale) {
+        this.scale = scale;
+    }
+
+    // getter for progressive mode preview
+    public Comp.Preview getPreview() {
+        return this.preview;
+    }
+
+    // setter for progressive mode preview, null to disable
+    public void setPreview(Comp.Preview preview) {
+        this.preview = preview;
+    }
+
+    // getter for level animation
+    public Comp.Preview getAnimation() {
+        return this.animation;
+    }
+
+    // setter for level animation, null to disable
+    public void setAnimation(Comp.Preview animation) {
+        this.animation = animation;
+    }
+}
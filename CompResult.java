@@ -0,0 +1,99 @@
+/*----------------------------------------------------------------------------*/
+/*
+/* File: CompResult.java
+/*
+/* CompResult objects keep the cell grid of every level computed by Comp along
+/* with the final composite, so that after a localized edit of the input only
+/* the cells and composite pixels touched by the edit need to be recomputed.
+/* For every level, the tiles of the composite already made opaque by finer
+/* levels are also kept, since changes to a level cannot show through them.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class CompResult {
+
+    // color space of result
+    private final Comp.Mode mode;
+    // width of composite
+    private final int width;
+    // height of composite
+    private final int height;
+    // cell grid of each level, coarsest first
+    private final CellGrid[] grids;
+    // final composite as straight alpha packed ARGB values in row-major order
+    private final int[] composite;
+    // number of tiles across and down
+    private final int tilesX;
+    private final int tilesY;
+    // whether each tile is opaque from the levels finer than each level
+    private final boolean[][] covered;
+
+    // constructor
+    public CompResult(Comp.Mode mode, int width, int height, CellGrid[] grids, int[] composite) {
+        this.mode = mode;
+        this.width = width;
+        this.height = height;
+        this.grids = grids;
+        this.composite = composite;
+        this.tilesX = (width + LayerStack.TILE_SIZE - 1) / LayerStack.TILE_SIZE;
+        this.tilesY = (height + LayerStack.TILE_SIZE - 1) / LayerStack.TILE_SIZE;
+        this.covered = new boolean[grids.length][tilesX * tilesY];
+    }
+
+    // getter for color space
+    public Comp.Mode getMode() {
+        return this.mode;
+    }
+
+    // getter for width
+    public int getWidth() {
+        return this.width;
+    }
+
+    // getter for height
+    public int getHeight() {
+        return this.height;
+    }
+
+    // getter for number of levels
+    public int getLevels() {
+        return this.grids.length;
+    }
+
+    // getter for cell grid of level
+    public CellGrid getGrid(int level) {
+        return this.grids[level];
+    }
+
+    // setter for cell grid of level
+    public void setGrid(int level, CellGrid grid) {
+        this.grids[level] = grid;
+    }
+
+    // getter for composite, patched in place on recompute
+    public int[] getComposite() {
+        return this.composite;
+    }
+
+    // getter for number of tiles across
+    public int getTilesX() {
+        return this.tilesX;
+    }
+
+    // getter for number of tiles down
+    public int getTilesY() {
+        return this.tilesY;
+    }
+
+    // whether tile is opaque from the levels finer than level
+    public boolean isCovered(int level, int tx, int ty) {
+        return this.covered[level][ty * tilesX + tx];
+    }
+
+    // setter for whether tile is opaque from the levels finer than level
+    public void setCovered(int level, int tx, int ty, boolean covered) {
+        this.covered[level][ty * tilesX + tx] = covered;
+    }
+}
@@ -3,10 +3,24 @@ import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.imageio.ImageIO;
 
 public class Filter {
 
+    // compression level of PNG outputs, from 0 (fastest) to 9 (smallest)
+    private static int pngLevel = PngWriter.DEFAULT_LEVEL;
+
+    // setter for compression level of PNG outputs
+    public static void setPngLevel(int pngLevel) {
+        Filter.pngLevel = pngLevel;
+    }
+
     public static void main(String[] args) throws IOException {
 
         if (args.length < 1) {
@@ -18,11 +32,29 @@ public class Filter {
         if (args[0].equals("help")) {
             System.out.println(" - SeparateRGB: decompose image into RGB channels");
             System.out.println(" - SeparateCMY: decompose image into CMY channels");
+            System.out.println(" - SeparateAll: decompose image into RGB and CMY channels in one pass");
             System.out.println(" - Checker: checker with white pixels");
             System.out.println(" - Pixellate <size>: pixellate image with coarseness proportional to size");
+            System.out.println("any further argument such as \"level1\": PNG compression level, 0 fastest to 9 smallest");
             return;
         }
 
+        for (int a = 2; a < args.length; a++) {
+            if (args[a].startsWith("level")) {
+                int level = -1;
+                try {
+                    level = Integer.parseInt(args[a].substring(5));
+                } catch (NumberFormatException e) {
+                    // reported below along with levels out of range
+                }
+                if (level < PngWriter.MIN_LEVEL || level > PngWriter.MAX_LEVEL) {
+                    System.out.println("PNG compression level must be given as \"level0\" (fastest) to \"level9\" (smallest), got \"" + args[a] + "\"");
+                    return;
+                }
+                setPngLevel(level);
+            }
+        }
+
         BufferedImage inImg = ImageIO.read(new File(args[0]));
 
         if (args[1].equals("SeparateRGB")) {
@@ -35,6 +67,11 @@ public class Filter {
             return;
         }
 
+        if (args[1].equals("SeparateAll")) {
+            separateAll(inImg);
+            return;
+        }
+
         if (args[1].equals("Checker")) {
             checker(inImg);
             return;
@@ -49,122 +86,95 @@ public class Filter {
     public static void checker(BufferedImage inImg) throws IOException {
         ImageData imgData = new ImageData(inImg);
 
-        ImageData.IndexedMap indexedMap = (p, x, y) -> p.add(((x + y) % 2 == 0) ? new Pixel(255, 255, 255, 255) : new Pixel(0, 0, 0, 255));
-        imgData.applyIndexedMap(indexedMap);
+        ImageData.CoordinateMap coordinateMap = (p, x, y, cellX, cellY) -> {
+            p.setPixel(p.add(((x + y) % 2 == 0) ? new Pixel(255, 255, 255, 255) : new Pixel(0, 0, 0, 255)));
+            p.clamp();
+        };
+        imgData.applyCoordinateMap(coordinateMap, 1);
 
-        BufferedImage outImg = new BufferedImage(
-            inImg.getWidth(),
-            inImg.getHeight(),
-            BufferedImage.TYPE_INT_ARGB
-        );
-
-        imgData.toImage(outImg);
-        File outFile = new File("outChecker.png");
-        ImageIO.write(outImg, "png", outFile);
+        int[] argb = imgData.toPacked(new int[imgData.getWidth() * imgData.getHeight()]);
+        PngWriter.write(argb, imgData.getWidth(), imgData.getHeight(), true, pngLevel, new File("outChecker.png"));
     }
 
     public static void pixellate(BufferedImage inImg, int size) throws IOException {
         ImageData imgData = new ImageData(inImg);
 
-        ImageData.CoarseMap map = (dest, src) -> dest.setPixel(src);
+        ImageData.CoarseMap map = (dest, src, index) -> dest.setPixel(src);
         imgData.applyCoarseMap(map, size);
 
-        BufferedImage outImg = new BufferedImage(
-            inImg.getWidth(),
-            inImg.getHeight(),
-            BufferedImage.TYPE_INT_ARGB
-        );
-
-        imgData.toImage(outImg);
-        File outFile = new File("outPixellate.png");
-        ImageIO.write(outImg, "png", outFile);
+        int[] argb = imgData.toPacked(new int[imgData.getWidth() * imgData.getHeight()]);
+        PngWriter.write(argb, imgData.getWidth(), imgData.getHeight(), true, pngLevel, new File("outPixellate.png"));
     }
 
     public static void separateRGB(BufferedImage inImg) throws IOException {
-        ImageData imgDataR = new ImageData(inImg);
-        ImageData imgDataG = new ImageData(inImg);
-        ImageData imgDataB = new ImageData(inImg);
-
-        ImageData.Map mapR = p -> p.mult(new Pixel(255, 0, 0, 255));
-        imgDataR.applyMap(mapR);
-
-        ImageData.Map mapG = p -> p.mult(new Pixel(0, 255, 0, 255));
-        imgDataG.applyMap(mapG);
-
-        ImageData.Map mapB = p -> p.mult(new Pixel(0, 0, 255, 255));
-        imgDataB.applyMap(mapB);
-
-        BufferedImage outImgR = new BufferedImage(
-            inImg.getWidth(),
-            inImg.getHeight(),
-            BufferedImage.TYPE_INT_ARGB
-        );
-
-        BufferedImage outImgG = new BufferedImage(
-            inImg.getWidth(),
-            inImg.getHeight(),
-            BufferedImage.TYPE_INT_ARGB
-        );
-
-        BufferedImage outImgB = new BufferedImage(
-            inImg.getWidth(),
-            inImg.getHeight(),
-            BufferedImage.TYPE_INT_ARGB
-        );
-
-        imgDataR.toImage(outImgR);
-        imgDataG.toImage(outImgG);
-        imgDataB.toImage(outImgB);
-
-        File outFileR = new File("outR.png");
-        File outFileG = new File("outG.png");
-        File outFileB = new File("outB.png");
-        ImageIO.write(outImgR, "png", outFileR);
-        ImageIO.write(outImgG, "png", outFileG);
-        ImageIO.write(outImgB, "png", outFileB);
+        separateChannels(inImg, RGB_MASKS, RGB_NAMES);
     }
 
     public static void separateCMY(BufferedImage inImg) throws IOException {
-        ImageData imgDataC = new ImageData(inImg);
-        ImageData imgDataM = new ImageData(inImg);
-        ImageData imgDataY = new ImageData(inImg);
-
-        ImageData.Map mapC = p -> p.mult(new Pixel(0, 255, 255, 255));
-        imgDataC.applyMap(mapC);
-
-        ImageData.Map mapM = p -> p.mult(new Pixel(255, 0, 255, 255));
-        imgDataM.applyMap(mapM);
-
-        ImageData.Map mapY = p -> p.mult(new Pixel(255, 255, 0, 255));
-        imgDataY.applyMap(mapY);
-
-        BufferedImage outImgC = new BufferedImage(
-            inImg.getWidth(),
-            inImg.getHeight(),
-            BufferedImage.TYPE_INT_ARGB
-        );
-
-        BufferedImage outImgM = new BufferedImage(
-            inImg.getWidth(),
-            inImg.getHeight(),
-            BufferedImage.TYPE_INT_ARGB
-        );
-
-        BufferedImage outImgY = new BufferedImage(
-            inImg.getWidth(),
-            inImg.getHeight(),
-            BufferedImage.TYPE_INT_ARGB
-        );
-
-        imgDataC.toImage(outImgC);
-        imgDataM.toImage(outImgM);
-        imgDataY.toImage(outImgY);
-
-        File outFileC = new File("outC.png");
-        File outFileM = new File("outM.png");
-        File outFileY = new File("outY.png");
-        ImageIO.write(outImgC, "png", outFileC);
-        ImageIO.write(outImgM, "png", outFileM);
-        ImageIO.write(outImgY, "png", outFileY);
+        separateChannels(inImg, CMY_MASKS, CMY_NAMES);
+    }
+
+    public static void separateAll(BufferedImage inImg) throws IOException {
+        separateChannels(inImg, ALL_MASKS, ALL_NAMES);
+    }
+
+    // component-wise masks for each channel, packed as 0x00RRGGBB
+    private static final int[] RGB_MASKS = { 0xff0000, 0x00ff00, 0x0000ff };
+    private static final int[] CMY_MASKS = { 0x00ffff, 0xff00ff, 0xffff00 };
+    private static final int[] ALL_MASKS = { 0xff0000, 0x00ff00, 0x0000ff, 0x00ffff, 0xff00ff, 0xffff00 };
+
+    private static final String[] RGB_NAMES = { "R", "G", "B" };
+    private static final String[] CMY_NAMES = { "C", "M", "Y" };
+    private static final String[] ALL_NAMES = { "R", "G", "B", "C", "M", "Y" };
+
+    // decode source once and emit one plane per mask in a single traversal,
+    // then encode the planes concurrently, each with its row blocks
+    // compressed concurrently
+    public static void separateChannels(BufferedImage inImg, int[] masks, String[] names) throws IOException {
+        ImageData imgData = new ImageData(inImg);
+        int width = imgData.getWidth();
+        int height = imgData.getHeight();
+
+        int[][] planes = new int[masks.length][width * height];
+
+        Pixel[][] data = imgData.getData();
+        for (int j = 0; j < height; j++) {
+            Pixel[] row = data[j];
+            int offset = j * width;
+            for (int i = 0; i < width; i++) {
+                // masking with 0xff components is equivalent to mult by the
+                // channel pixel, so one packed value serves every plane
+                int argb = row[i].toInt();
+                int alpha = argb & 0xff000000;
+                for (int c = 0; c < masks.length; c++) {
+                    planes[c][offset + i] = alpha | (argb & masks[c]);
+                }
+            }
+        }
+
+        // encode planes concurrently as well, small images split into too
+        // few row blocks to keep every core busy on their own
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(masks.length, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Void>> writes = new ArrayList<>();
+            for (int c = 0; c < masks.length; c++) {
+                int[] plane = planes[c];
+                File outFile = new File("out" + names[c] + ".png");
+                writes.add(executor.submit(() -> {
+                    PngWriter.write(plane, width, height, true, pngLevel, outFile);
+                    return null;
+                }));
+            }
+            for (Future<Void> write : writes) {
+                write.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
     }
 }
@@ -0,0 +1,147 @@
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: FrameSequence.java
+/*
+/* FrameSequence objects run Comp over the frames of an image sequence, such as
+/* one exported from video, in order. The first frame is composed in full, and
+/* every later frame only recomputes the tiles under cells whose average moved
+/* by more than a threshold since they were last rendered, so static regions
+/* cost little more than the decode and encode of each frame. Decoding of the
+/* next frame and encoding of the previous one overlap with the rendering of
+/* the current frame.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class FrameSequence {
+
+    // levels computed for every frame
+    private final LevelPlanner.Plan plan;
+    // largest change of a cell component that keeps the rendered cell
+    private final int threshold;
+    // settings of the final composites written for every frame
+    private final CompOptions options;
+
+    // constructor
+    public FrameSequence(LevelPlanner.Plan plan, int threshold) {
+        this(plan, threshold, new CompOptions());
+    }
+
+    // constructor for sequences written with given options
+    public FrameSequence(LevelPlanner.Plan plan, int threshold, CompOptions options) {
+        this.plan = plan;
+        this.threshold = threshold;
+        this.options = options;
+    }
+
+    // image files of directory in name order, taken to be frames in order
+    public static File[] frames(File dir) {
+        File[] frames = dir.listFiles((d, name) -> {
+            String lower = name.toLowerCase();
+            return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg");
+        });
+        if (frames == null) {
+            return new File[0];
+        }
+        Arrays.sort(frames);
+        return frames;
+    }
+
+    // runs the CMY and RGB filters over every frame, writing the final
+    // composites of each frame into output directory under the name of the
+    // frame, every frame must have the dimensions the plan was made for
+    public void run(File[] frames, File outDir, int levels) throws IOException {
+        long start = System.currentTimeMillis();
+        outDir.mkdirs();
+        ExecutorService decoder = Executors.newSingleThreadExecutor();
+        ExecutorService encoder = Executors.newSingleThreadExecutor();
+        CompResult cmy = null;
+        CompResult rgb = null;
+        ImageData previous = null;
+        long recomputedPixels = 0;
+        try {
+            Future<ImageData> next = decoder.submit(() -> ImageData.read(frames[0], 1));
+            List<Future<Void>> writes = new ArrayList<>();
+            for (int f = 0; f < frames.length; f++) {
+                ImageData frame = next.get();
+                if (frame.getWidth() != plan.getWidth() || frame.getHeight() != plan.getHeight()) {
+                    throw new IOException(frames[f] + ": expected " + plan.getWidth() + "x" + plan.getHeight()
+                        + ", got " + frame.getWidth() + "x" + frame.getHeight());
+                }
+                // decode next frame while this one renders
+                if (f + 1 < frames.length) {
+                    File nextFile = frames[f + 1];
+                    next = decoder.submit(() -> ImageData.read(nextFile, 1));
+                }
+
+                if (previous == null) {
+                    cmy = Comp.compose(frame, plan, Comp.Mode.CMY);
+                    rgb = Comp.compose(frame, plan, Comp.Mode.RGB);
+                } else {
+                    // cells outside the pixels that differ from the previous
+                    // frame keep their averages, identical frames cost nothing
+                    Rectangle roi = frame.changedBounds(previous);
+                    if (roi != null) {
+                        for (Rectangle run : Comp.advance(cmy, frame, roi, threshold)) {
+                            recomputedPixels += (long) run.width * run.height;
+                        }
+                        for (Rectangle run : Comp.advance(rgb, frame, roi, threshold)) {
+                            recomputedPixels += (long) run.width * run.height;
+                        }
+                    }
+                }
+                previous = frame;
+
+                // composites are patched in place by the next frame, so the
+                // encoder gets copies, and at most one frame waits to be
+                // encoded so copies do not pile up
+                for (Future<Void> write : writes) {
+                    write.get();
+                }
+                writes.clear();
+                String name = frames[f].getName();
+                String outName = new File(outDir, name.substring(0, name.lastIndexOf('.')) + "-tri-" + levels).getPath();
+                writes.add(encode(encoder, cmy, outName + "-CMY-normalg"));
+                writes.add(encode(encoder, rgb, outName + "-RGB-normal"));
+            }
+            for (Future<Void> write : writes) {
+                write.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            decoder.shutdown();
+            encoder.shutdown();
+        }
+        long framePixels = 2L * plan.getWidth() * plan.getHeight();
+        System.out.println("sequence: " + frames.length + " frames, " + recomputedPixels + " of "
+            + (framePixels * Math.max(0, frames.length - 1)) + " pixels recomputed after the first frame");
+        System.out.println("sequence finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+    }
+
+    // submit copy of composite of result to be written by encoder
+    private Future<Void> encode(ExecutorService encoder, CompResult result, String fileName) {
+        int[] argb = result.getComposite().clone();
+        int width = result.getWidth();
+        int height = result.getHeight();
+        return encoder.submit(() -> {
+            Comp.write(argb, width, height, fileName, options.isPalette());
+            return null;
+        });
+    }
+}
@@ -1,5 +1,15 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 /*----------------------------------------------------------------------------*/
 /*
@@ -28,6 +38,10 @@ public class ImageData {
     // presence of alpha channel
     private boolean hasAlphaChannel;
 
+    // seed of row offsets when none is given, so offset filters are
+    // reproducible across runs
+    public static final long DEFAULT_SEED = 0x5eedL;
+
     // constructor for implementing deep copy
     public ImageData(int height, int width, Pixel[][] data, boolean hasAlphaChannel) {
         this.height = height;
@@ -56,47 +70,129 @@ public class ImageData {
         }
     }
 
-    // constructor that marshalls BufferedImage object to ImageData object
+    // constructor for blank images backed by recycled pixel storage
+    public ImageData(int height, int width, boolean hasAlphaChannel, Pixel[][] storage) {
+        this.height = height;
+        this.width = width;
+        this.hasAlphaChannel = hasAlphaChannel;
+        this.data = storage;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                // reset all pixels to transparent black
+                Pixel p = data[j][i];
+                p.r = 0;
+                p.g = 0;
+                p.b = 0;
+                p.a = 0;
+            }
+        }
+    }
+
+    // constructor that marshalls BufferedImage object of any type to ImageData
+    // object, decoding a band of rows at a time
     public ImageData(BufferedImage img) {
-        byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
         this.width = img.getWidth();
         this.height = img.getHeight();
-        this.hasAlphaChannel = img.getAlphaRaster() != null;
+        this.hasAlphaChannel = RasterDecoder.hasAlpha(img);
         this.data = new Pixel[height][width];
-        // marshall differently depending on presence of alpha data
-        if (hasAlphaChannel) {
-            final int pixelength = 4;
-            for (int pixel = 0, row = 0, col = 0; pixel < pixels.length; pixel += pixelength) {
-                // marshalling from byte to Pixel object
-                data[row][col] = new Pixel(
-                    (int) pixels[pixel + 3] & 0xff, // red
-                    (int) pixels[pixel + 2] & 0xff, // green
-                    (int) pixels[pixel + 1] & 0xff, // blue
-                    (int) pixels[pixel] & 0xff // alpha
-                );
-                col++;
-                if (col == width) {
-                    col = 0;
-                    row++;
+        BandedImage.Rows rows = RasterDecoder.rows(img);
+        int bandRows = Math.min(BandedImage.BAND_ROWS, height);
+        int[] band = new int[width * bandRows];
+        for (int y0 = 0; y0 < height; y0 += bandRows) {
+            int count = Math.min(bandRows, height - y0);
+            rows.copy(y0, count, band);
+            for (int j = 0, k = 0; j < count; j++) {
+                Pixel[] row = data[y0 + j];
+                for (int i = 0; i < width; i++, k++) {
+                    int v = band[k];
+                    row[i] = new Pixel((v >> 16) & 0xff, (v >> 8) & 0xff, v & 0xff, v >>> 24);
                 }
             }
-        } else {
-            final int pixelength = 3;
-            for (int pixel = 0, row = 0, col = 0; pixel < pixels.length; pixel += pixelength) {
-                // marshalling from byte to Pixel object
-                data[row][col] = new Pixel(
-                    (int) pixels[pixel + 2] & 0xff, // red
-                    (int) pixels[pixel + 1] & 0xff, // green
-                    (int) pixels[pixel] & 0xff, // blue
-                    0xff // alpha
-                );
-                col++;
-                if (col == width) {
-                    col = 0;
-                    row++;
+        }
+    }
+
+    // constructor that marshalls packed ARGB pixels in row-major order
+    public ImageData(int[] argb, int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.hasAlphaChannel = true;
+        this.data = new Pixel[height][width];
+        for (int j = 0, k = 0; j < height; j++) {
+            Pixel[] row = data[j];
+            for (int i = 0; i < width; i++, k++) {
+                int v = argb[k];
+                row[i] = new Pixel((v >> 16) & 0xff, (v >> 8) & 0xff, v & 0xff, v >>> 24);
+            }
+        }
+    }
+
+    // read image file, decoding only every subsampling-th pixel of every
+    // subsampling-th row, so a proxy of the image costs a fraction of the
+    // full image to marshall and filter
+    public static ImageData read(File file, int subsampling) throws IOException {
+        if (QoiCodec.isQoi(file)) {
+            return readQoi(file, subsampling);
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = reader(file, in);
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return new ImageData(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // dimensions of image file, read from its header without decoding pixels
+    public static Dimension readSize(File file) throws IOException {
+        if (QoiCodec.isQoi(file)) {
+            return QoiCodec.readSize(file);
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = reader(file, in);
+            try {
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // read QOI file written as an intermediate, decoding every pixel then
+    // keeping every subsampling-th pixel of every subsampling-th row
+    private static ImageData readQoi(File file, int subsampling) throws IOException {
+        int[] size = new int[2];
+        int[] argb = QoiCodec.read(file, null, size);
+        int step = Math.max(1, subsampling);
+        int width = (size[0] + step - 1) / step;
+        int height = (size[1] + step - 1) / step;
+        if (step > 1) {
+            // subsample in place, each kept pixel moves to a lower index
+            for (int j = 0, k = 0; j < height; j++) {
+                for (int i = 0; i < width; i++, k++) {
+                    argb[k] = argb[j * step * size[0] + i * step];
                 }
             }
         }
+        return new ImageData(argb, width, height);
+    }
+
+    // reader for image file positioned at start of stream
+    private static ImageReader reader(File file, ImageInputStream in) throws IOException {
+        if (in == null) {
+            throw new IOException("cannot open " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            throw new IOException("no reader for " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
     }
 
     // getter for width
@@ -128,6 +224,42 @@ public class ImageData {
         }
     }
 
+    // utility function to marshall ImageData object to BufferedImage object,
+    // keeping alpha only if destination image has an alpha channel
+    public void toImage(BufferedImage img) {
+        toImage(img, (img.getAlphaRaster() != null) ? FileType.PNG : FileType.JPG);
+    }
+
+    // copy pixels into packed ARGB array in row-major order
+    public int[] toPacked(int[] argb) {
+        return toPacked(0, height, argb);
+    }
+
+    // copy rows from y0 into packed ARGB array in row-major order, starting at
+    // its first element
+    public int[] toPacked(int y0, int rows, int[] argb) {
+        for (int j = y0, k = 0; j < y0 + rows; j++) {
+            for (int i = 0; i < width; i++, k++) {
+                argb[k] = data[j][i].toInt();
+            }
+        }
+        return argb;
+    }
+
+    // set pixels from packed ARGB array in row-major order
+    public void fromPacked(int[] argb) {
+        for (int j = 0, k = 0; j < height; j++) {
+            for (int i = 0; i < width; i++, k++) {
+                Pixel p = data[j][i];
+                int v = argb[k];
+                p.a = v >>> 24;
+                p.r = (v >> 16) & 0xff;
+                p.g = (v >> 8) & 0xff;
+                p.b = v & 0xff;
+            }
+        }
+    }
+
     // utility function to prevent out of bounds errors
     public int clamp(float x, int floor, int ceil) {
         return (x > ceil) ? ceil : (x < floor) ? floor : (int) x;
@@ -158,6 +290,12 @@ public class ImageData {
         void apply(Pixel p, int index);
     }
 
+    // interface for map that provides coordinates of pixel in image and
+    // within the pixelation area (cell) containing it
+    public interface CoordinateMap {
+        void apply(Pixel p, int x, int y, int cellX, int cellY);
+    }
+
     // interface for map that applies kernel to matrix of neighboring pixels
     public interface KernelMap {
         void apply(Pixel[] pixels, int index);
@@ -172,6 +310,26 @@ public class ImageData {
         }
     }
 
+    // apply lookup table to every pixel in ImageData object
+    public void applyLookupTable(LookupTable lut) {
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                lut.apply(data[j][i]);
+            }
+        }
+    }
+
+    // convert every pixel to its luminance, then apply lookup table
+    public void applyGrayscale(LookupTable lut) {
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                Pixel p = data[j][i];
+                LookupTable.applyLum(p);
+                lut.apply(p);
+            }
+        }
+    }
+
     // apply coarse map to every pixel in ImageData object
     public void applyCoarseMap(CoarseMap map, int size) {
         for (int i = 0; i < width; i++) {
@@ -190,29 +348,11 @@ public class ImageData {
 
     // apply coarse map to every pixel in ImageData object using averaging
     public void applyCoarseMapWithAveraging(CoarseMap map, int size) {
-        // store averages for each pixelation area
-        Pixel[][] averages = new Pixel[height / size + 1][width / size + 1];
+        // averages for each pixelation area, computed before any pixel is
+        // written
+        Pixel[][] averages = cellAverages(size);
         for (int i = 0; i < width; i++) {
             for (int j = 0; j < height; j++) {
-                // if average for this pixelatino area hasn't yet been
-                // calculated, calculate
-                if (averages[j / size][i / size] == null) {
-                    Pixel average = new Pixel(0, 255);
-                    int weight = 0;
-                    // sum pixels in pixelation area
-                    for (int k = i; k < i + size; k++) {
-                        for (int l = j; l < j + size; l++) {
-                            if (k < 0 || k > width - 1 || l < 0 || l > height - 1) {
-                                continue;
-                            } else {
-                                average.setPixel(average.add(data[clamp(l, 0, height - 1)][clamp(k, 0, width - 1)]));
-                                weight++;
-                            }
-                        }
-                    }
-                    // normalize
-                    averages[j / size][i / size] = average.multScalar(1 / (double) weight);
-                }
                 // calculate one-dimensional index
                 int index = (i + j * width);
                 // src pixel calculated from averaging operation
@@ -225,26 +365,110 @@ public class ImageData {
         }
     }
 
+    // calculate uniformly weighted average of each pixelation area of given
+    // size, areas on the image border only average pixels inside the image
+    public Pixel[][] cellAverages(int size) {
+        Pixel[][] averages = new Pixel[height / size + 1][width / size + 1];
+        for (int cellRow = 0; cellRow * size < height; cellRow++) {
+            for (int cellCol = 0; cellCol * size < width; cellCol++) {
+                averages[cellRow][cellCol] = cellAverage(size, cellRow, cellCol);
+            }
+        }
+        return averages;
+    }
+
+    // calculate uniformly weighted average of a single pixelation area of
+    // given size
+    public Pixel cellAverage(int size, int cellRow, int cellCol) {
+        int y0 = cellRow * size;
+        int x0 = cellCol * size;
+        int yEnd = Math.min(y0 + size, height);
+        int xEnd = Math.min(x0 + size, width);
+        // sum pixels in pixelation area, wide enough for a whole-image cell
+        long r = 0;
+        long g = 0;
+        long b = 0;
+        for (int j = y0; j < yEnd; j++) {
+            for (int i = x0; i < xEnd; i++) {
+                Pixel p = data[j][i];
+                r += p.r;
+                g += p.g;
+                b += p.b;
+            }
+        }
+        int weight = (yEnd - y0) * (xEnd - x0);
+        // normalize
+        double scale = 1 / (double) weight;
+        return new Pixel((int) (r * scale), (int) (g * scale), (int) (b * scale), 255);
+    }
+
+    // bounds of the pixels differing from other image of the same dimensions,
+    // returns null if there are none
+    public Rectangle changedBounds(ImageData other) {
+        int x0 = width;
+        int y0 = height;
+        int x1 = -1;
+        int y1 = -1;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                if (data[j][i].toInt() != other.data[j][i].toInt()) {
+                    x0 = Math.min(x0, i);
+                    x1 = Math.max(x1, i);
+                    y0 = Math.min(y0, j);
+                    y1 = j;
+                }
+            }
+        }
+        return (y1 < 0) ? null : new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+    }
+
+    // offsets of each row of pixelation areas of given size, nonzero and
+    // within half an area either way, every row draws from its own generator
+    // split from one seeded by seed so offsets depend on seed alone
+    public static int[] rowOffsets(int height, int size, long seed) {
+        int[] offsets = new int[height / size + 1];
+        // no nonzero offset fits within areas of a single pixel
+        if (size < 2) {
+            return offsets;
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int row = 0; row < offsets.length; row++) {
+            SplittableRandom rowRandom = random.split();
+            while (offsets[row] == 0) {
+                offsets[row] = rowRandom.nextInt(size) - size/2;
+            }
+        }
+        return offsets;
+    }
+
     // apply coarse map to every pixel in ImageData object with rows offset
     public int[] applyOffsetCoarseMap(CoarseMap map, int size) {
-        // keep track of row offsets
-        int[] offsets = new int[height / size + 1];
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                // if offset for this row hasn't been calculated yet, calculate
-                while (offsets[j / size] == 0) {
-                    offsets[j / size] = (int) (Math.random() * size) - size/2;
+        return applyOffsetCoarseMap(map, size, rowOffsets(height, size, DEFAULT_SEED));
+    }
+
+    // apply coarse map to every pixel in ImageData object with rows offset by
+    // given offsets, rows of pixelation areas only read and write their own
+    // pixels so they are mapped in parallel, map must be thread-safe
+    public int[] applyOffsetCoarseMap(CoarseMap map, int size, int[] offsets) {
+        IntStream.range(0, (height + size - 1) / size).parallel().forEach(cellRow -> {
+            int offset = offsets[cellRow];
+            int yEnd = Math.min((cellRow + 1) * size, height);
+            // source row is the center row of the pixelation area
+            int ySrc = clamp(cellRow * size + size/2, 0, height - 1);
+            for (int i = 0; i < width; i++) {
+                for (int j = cellRow * size; j < yEnd; j++) {
+                    // calculate one-dimensional index
+                    int index = (i + j * width);
+                    // src pixel selected from pixelation area using point
+                    // sampling
+                    map.apply(
+                        data[j][clamp((i + offset + width) % width, 0, width - 1)],
+                        data[ySrc][clamp(((i / size) * size + size/2 + offset + width) % width, 0, width - 1)],
+                        index
+                    );
                 }
-                // calculate one-dimensional index
-                int index = (i + j * width);
-                // src pixel selected from pixelation area using point sampling
-                map.apply(
-                    data[j][clamp((i + offsets[j / size] + width) % width, 0, width - 1)],
-                    data[clamp((int) Math.floor(j / size) * size + size/2, 0, height - 1)][clamp((int) (Math.floor(i / size) * size + size/2 + offsets[j / size] + width) % width, 0, width - 1)],
-                    index
-                );
             }
-        }
+        });
         // return offsets used for subsequent filters
         return offsets;
     }
@@ -252,41 +476,47 @@ public class ImageData {
     // apply coarse map to every pixel in ImageData object using averaging with
     // rows offset
     public int[] applyOffsetCoarseMapWithAveraging(CoarseMap map, int size) {
-        // store averages for each pixelation area
-        Pixel[][] averages = new Pixel[height / size + 1][width / size + 1];
-        // keep track of row offsets
-        int[] offsets = new int[height / size + 1];
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                // if offset for this row hasn't been calculated yet, calculate
-                while (offsets[j / size] == 0) {
-                    offsets[j / size] = (int) (Math.random() * size) - size/2;
-                }
-                // if average for this pixelatino area hasn't yet been
+        return applyOffsetCoarseMapWithAveraging(map, size, rowOffsets(height, size, DEFAULT_SEED));
+    }
+
+    // apply coarse map to every pixel in ImageData object using averaging with
+    // rows offset by given offsets, rows of pixelation areas are mapped in
+    // parallel, map must be thread-safe
+    public int[] applyOffsetCoarseMapWithAveraging(CoarseMap map, int size, int[] offsets) {
+        IntStream.range(0, (height + size - 1) / size).parallel().forEach(cellRow -> {
+            int offset = offsets[cellRow];
+            int y0 = cellRow * size;
+            int yEnd = Math.min(y0 + size, height);
+            // store averages for each pixelation area of this row
+            Pixel[] averages = new Pixel[width / size + 1];
+            for (int i = 0; i < width; i++) {
+                // if average for this pixelation area hasn't yet been
                 // calculated, calculate
-                if (averages[j / size][i / size] == null) {
+                if (averages[i / size] == null) {
                     Pixel average = new Pixel(0, 255);
                     int weight = 0;
                     // sum pixels in pixelation area
-                    for (int k = i + offsets[j / size]; k < i + size + offsets[j / size]; k++) {
-                        for (int l = j; l < j + size; l++) {
+                    for (int k = i + offset; k < i + size + offset; k++) {
+                        for (int l = y0; l < y0 + size; l++) {
                             average.setPixel(average.add(data[clamp(l, 0, height - 1)][clamp((k + width) % width, 0, width - 1)]));
                             weight++;
                         }
                     }
                     // normalize
-                    averages[j / size][i / size] = average.multScalar(1 / (double) weight);
+                    averages[i / size] = average.multScalar(1 / (double) weight);
+                }
+                for (int j = y0; j < yEnd; j++) {
+                    // calculate one-dimensional index
+                    int index = (i + j * width);
+                    // src pixel calculated from averaging operation
+                    map.apply(
+                        data[j][clamp((i + offset + width) % width, 0, width - 1)],
+                        averages[i / size],
+                        index
+                    );
                 }
-                // calculate one-dimensional index
-                int index = (i + j * width);
-                // src pixel calculated from averaging operation
-                map.apply(
-                    data[j][clamp((i + offsets[j / size] + width) % width, 0, width - 1)],
-                    averages[j / size][i / size],
-                    index
-                );
             }
-        }
+        });
         // return offsets used for subsequent filters
         return offsets;
     }
@@ -302,6 +532,43 @@ public class ImageData {
         }
     }
 
+    // apply coordinate map to every pixel in ImageData object, with cell
+    // coordinates relative to cells of given size
+    public void applyCoordinateMap(CoordinateMap map, int size) {
+        // step cell coordinates alongside image coordinates rather than
+        // dividing for every pixel
+        for (int j = 0, cellY = 0; j < height; j++) {
+            for (int i = 0, cellX = 0; i < width; i++) {
+                map.apply(data[j][i], i, j, cellX, cellY);
+                if (++cellX == size) {
+                    cellX = 0;
+                }
+            }
+            if (++cellY == size) {
+                cellY = 0;
+            }
+        }
+    }
+
+    // apply coordinate map to every pixel in ImageData object with rows
+    // offset, coordinates are those before offsetting
+    public void applyCoordinateMapWithOffsets(CoordinateMap map, int size, int[] offsets) {
+        for (int j = 0, cellY = 0, cellRow = 0; j < height; j++) {
+            int offset = offsets[cellRow];
+            for (int i = 0, cellX = 0; i < width; i++) {
+                // select pixel after offsetting and wrapping on image borders
+                map.apply(data[j][clamp((i + offset + width) % width, 0, width - 1)], i, j, cellX, cellY);
+                if (++cellX == size) {
+                    cellX = 0;
+                }
+            }
+            if (++cellY == size) {
+                cellY = 0;
+                cellRow++;
+            }
+        }
+    }
+
     // apply indexed map to every pixel in ImageData object with rows offset
     public void applyIndexedMapWithOffsets(IndexedMap map, int size, int[] offsets) {
         for (int i = 0; i < width; i++) {
@@ -325,7 +592,7 @@ public class ImageData {
                 Pixel[] res = new Pixel[dimension * dimension];
                 for (int k = j - dimension/2; k < j + dimension/2 + 1; k++) {
                     for (int l = i - dimension/2; l < i + dimension/2 + 1; l++) {
-                        res[((k - j + dimension/2) * dimension) + (l - i + dimension/2)] = getData()[k][l];
+                        res[((k - j + dimension/2) * dimension) + (l - i + dimension/2)] = data[k][l];
                     }
                 }
                 map.apply(res, index);
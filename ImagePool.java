@@ -0,0 +1,125 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: ImagePool.java
+/*
+/* ImagePool objects recycle the pixel storage of ImageData objects that are
+/* no longer needed, keyed by image dimensions, so that repeated filters over
+/* images of the same size stop allocating new pixels. The number of bytes held
+/* by the pool is capped, storage released beyond the cap is left to the garbage
+/* collector.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class ImagePool {
+
+    // approximate size of one Pixel object plus its array reference
+    public static final long BYTES_PER_PIXEL = 40;
+
+    // maximum number of bytes retained for reuse
+    private final long maxRetainedBytes;
+    // number of bytes currently retained
+    private long retainedBytes;
+    // free storage keyed by dimensions
+    private final HashMap<Long, ArrayDeque<Pixel[][]>> free = new HashMap<>();
+    // free packed buffers keyed by length
+    private final HashMap<Integer, ArrayDeque<int[]>> freePacked = new HashMap<>();
+
+    // counters for reporting
+    private int reused;
+    private int allocated;
+
+    // constructor
+    public ImagePool(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    // blank image of transparent black pixels
+    public ImageData blank(int height, int width, boolean hasAlphaChannel) {
+        return new ImageData(height, width, hasAlphaChannel, take(height, width));
+    }
+
+    // return storage of image to the pool, image must not be used afterwards
+    public void release(ImageData img) {
+        if (img == null) {
+            return;
+        }
+        int height = img.getHeight();
+        int width = img.getWidth();
+        Pixel[][] storage = img.getData();
+        long bytes = BYTES_PER_PIXEL * height * width;
+        synchronized (this) {
+            // over budget, let storage be collected
+            if (retainedBytes + bytes > maxRetainedBytes) {
+                return;
+            }
+            free.computeIfAbsent(key(height, width), k -> new ArrayDeque<>()).push(storage);
+            retainedBytes += bytes;
+        }
+    }
+
+    // packed ARGB buffer of given length, contents are undefined
+    public synchronized int[] packed(int length) {
+        ArrayDeque<int[]> stack = freePacked.get(length);
+        if (stack != null && !stack.isEmpty()) {
+            retainedBytes -= 4L * length;
+            reused++;
+            return stack.pop();
+        }
+        allocated++;
+        return new int[length];
+    }
+
+    // return packed buffer to the pool
+    public synchronized void release(int[] argb) {
+        if (argb == null || retainedBytes + 4L * argb.length > maxRetainedBytes) {
+            return;
+        }
+        freePacked.computeIfAbsent(argb.length, k -> new ArrayDeque<>()).push(argb);
+        retainedBytes += 4L * argb.length;
+    }
+
+    // drop all retained storage
+    public synchronized void clear() {
+        free.clear();
+        freePacked.clear();
+        retainedBytes = 0;
+    }
+
+    // getter for number of bytes currently retained
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    // utility stringifying function
+    public synchronized String toString() {
+        return "pool: " + reused + " reused, " + allocated + " allocated, " + (retainedBytes >> 20) + "MB retained";
+    }
+
+    // reuse storage of given dimensions if available, otherwise allocate it
+    private synchronized Pixel[][] take(int height, int width) {
+        ArrayDeque<Pixel[][]> stack = free.get(key(height, width));
+        if (stack != null && !stack.isEmpty()) {
+            retainedBytes -= BYTES_PER_PIXEL * height * width;
+            reused++;
+            return stack.pop();
+        }
+        allocated++;
+        Pixel[][] storage = new Pixel[height][width];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                storage[j][i] = new Pixel(0, 0, 0, 0);
+            }
+        }
+        return storage;
+    }
+
+    // combine dimensions into map key
+    private static long key(int height, int width) {
+        return ((long) height << 32) | (width & 0xffffffffL);
+    }
+}
@@ -0,0 +1,199 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: LayerStack.java
+/*
+/* LayerStack objects composite layers from the top down, each new layer being
+/* placed beneath those already added, using integer premultiplied alpha. The
+/* number of fully opaque pixels in each tile of the result is tracked, so once
+/* a tile is covered no lower layer is blended into it, and callers can skip
+/* computing lower layers in covered regions altogether. Layers may also be
+/* placed above those already added, so a composite can be refined from the
+/* bottom up and inspected after every layer.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class LayerStack {
+
+    // side length of opacity tiles, as a power of two
+    private static final int TILE_SHIFT = 5;
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+    // width of layers
+    private final int width;
+    // height of layers
+    private final int height;
+    // number of tiles across and down
+    private final int tilesX;
+    private final int tilesY;
+    // accumulated composite in premultiplied alpha
+    private final int[] acc;
+    // number of opaque pixels in each tile
+    private final int[] opaque;
+    // number of pixels in each tile, smaller on the right and bottom edges
+    private final int[] tilePixels;
+
+    // constructor
+    public LayerStack(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    // constructor that accumulates into given buffer
+    public LayerStack(int width, int height, int[] buffer) {
+        this.width = width;
+        this.height = height;
+        this.tilesX = ((width - 1) >> TILE_SHIFT) + 1;
+        this.tilesY = ((height - 1) >> TILE_SHIFT) + 1;
+        this.acc = buffer;
+        Arrays.fill(acc, 0, width * height, 0);
+        this.opaque = new int[tilesX * tilesY];
+        this.tilePixels = new int[tilesX * tilesY];
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                tilePixels[ty * tilesX + tx] = (Math.min((ty + 1) << TILE_SHIFT, height) - (ty << TILE_SHIFT))
+                    * (Math.min((tx + 1) << TILE_SHIFT, width) - (tx << TILE_SHIFT));
+            }
+        }
+    }
+
+    // getter for accumulation buffer
+    public int[] getBuffer() {
+        return this.acc;
+    }
+
+    // place layer of straight alpha ARGB values beneath the layers already
+    // added, skipping tiles that are already opaque
+    public void addBelow(int[] argb) {
+        IntStream.range(0, tilesY).parallel().forEach(ty -> {
+            int yEnd = Math.min((ty + 1) << TILE_SHIFT, height);
+            for (int tx = 0; tx < tilesX; tx++) {
+                int tile = ty * tilesX + tx;
+                if (opaque[tile] == tilePixels[tile]) {
+                    continue;
+                }
+                int xEnd = Math.min((tx + 1) << TILE_SHIFT, width);
+                int count = opaque[tile];
+                for (int j = ty << TILE_SHIFT; j < yEnd; j++) {
+                    for (int k = j * width + (tx << TILE_SHIFT); k < j * width + xEnd; k++) {
+                        int d = acc[k];
+                        int da = d >>> 24;
+                        int s = argb[k];
+                        int sa = s >>> 24;
+                        if (da == 255 || sa == 0) {
+                            continue;
+                        }
+                        // result = destination + premultiplied source *
+                        // (1 - destination alpha)
+                        int inv = 255 - da;
+                        int a = da + BlendKernels.mul255(sa, inv);
+                        int r = ((d >> 16) & 0xff) + BlendKernels.mul255(BlendKernels.mul255((s >> 16) & 0xff, sa), inv);
+                        int g = ((d >> 8) & 0xff) + BlendKernels.mul255(BlendKernels.mul255((s >> 8) & 0xff, sa), inv);
+                        int b = (d & 0xff) + BlendKernels.mul255(BlendKernels.mul255(s & 0xff, sa), inv);
+                        a = Math.min(a, 255);
+                        acc[k] = (a << 24) | (Math.min(r, 255) << 16) | (Math.min(g, 255) << 8) | Math.min(b, 255);
+                        if (a == 255) {
+                            count++;
+                        }
+                    }
+                }
+                opaque[tile] = count;
+            }
+        });
+    }
+
+    // place layer of straight alpha ARGB values above the layers already
+    // added
+    public void addAbove(int[] argb) {
+        IntStream.range(0, tilesY).parallel().forEach(ty -> {
+            int yEnd = Math.min((ty + 1) << TILE_SHIFT, height);
+            for (int tx = 0; tx < tilesX; tx++) {
+                int tile = ty * tilesX + tx;
+                int xEnd = Math.min((tx + 1) << TILE_SHIFT, width);
+                int count = opaque[tile];
+                for (int j = ty << TILE_SHIFT; j < yEnd; j++) {
+                    for (int k = j * width + (tx << TILE_SHIFT); k < j * width + xEnd; k++) {
+                        int s = argb[k];
+                        int sa = s >>> 24;
+                        if (sa == 0) {
+                            continue;
+                        }
+                        int d = acc[k];
+                        int da = d >>> 24;
+                        // opaque source covers destination
+                        if (sa == 255) {
+                            acc[k] = s;
+                            if (da != 255) {
+                                count++;
+                            }
+                            continue;
+                        }
+                        // result = premultiplied source + destination *
+                        // (1 - source alpha), opaque destinations stay opaque
+                        int inv = 255 - sa;
+                        int a = Math.min(sa + BlendKernels.mul255(da, inv), 255);
+                        int r = BlendKernels.mul255((s >> 16) & 0xff, sa) + BlendKernels.mul255((d >> 16) & 0xff, inv);
+                        int g = BlendKernels.mul255((s >> 8) & 0xff, sa) + BlendKernels.mul255((d >> 8) & 0xff, inv);
+                        int b = BlendKernels.mul255(s & 0xff, sa) + BlendKernels.mul255(d & 0xff, inv);
+                        acc[k] = (a << 24) | (Math.min(r, 255) << 16) | (Math.min(g, 255) << 8) | Math.min(b, 255);
+                        if (a == 255 && da != 255) {
+                            count++;
+                        }
+                    }
+                }
+                opaque[tile] = count;
+            }
+        });
+    }
+
+    // whether every tile overlapping the rectangle from (x0, y0) inclusive to
+    // (x1, y1) exclusive is fully opaque
+    public boolean isCovered(int x0, int y0, int x1, int y1) {
+        for (int ty = y0 >> TILE_SHIFT; ty <= (y1 - 1) >> TILE_SHIFT; ty++) {
+            for (int tx = x0 >> TILE_SHIFT; tx <= (x1 - 1) >> TILE_SHIFT; tx++) {
+                int tile = ty * tilesX + tx;
+                if (opaque[tile] != tilePixels[tile]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // whether tile is fully opaque
+    public boolean isTileCovered(int tx, int ty) {
+        int tile = ty * tilesX + tx;
+        return opaque[tile] == tilePixels[tile];
+    }
+
+    // number of fully opaque tiles
+    public int getCoveredTiles() {
+        int covered = 0;
+        for (int tile = 0; tile < opaque.length; tile++) {
+            if (opaque[tile] == tilePixels[tile]) {
+                covered++;
+            }
+        }
+        return covered;
+    }
+
+    // number of tiles
+    public int getTileCount() {
+        return opaque.length;
+    }
+
+    // copy composite into destination as straight alpha ARGB values, pixels
+    // left fully transparent keep the color dest already holds, normally the
+    // last layer added, so they keep the background color of the layers
+    public int[] result(int[] dest) {
+        for (int k = 0; k < width * height; k++) {
+            int v = acc[k];
+            dest[k] = (v >>> 24 != 0) ? v : dest[k] & 0xffffff;
+        }
+        BlendKernels.unpremultiply(dest);
+        return dest;
+    }
+}
@@ -0,0 +1,175 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: LevelAnimation.java
+/*
+/* LevelAnimation objects receive the composite of the levels computed so far
+/* after every level in progressive mode, and append it as a frame of an
+/* animated GIF per color space, streamed to disk as each level completes. Only
+/* the bounds of the pixels that changed since the previous frame are encoded,
+/* with unchanged pixels inside the bounds left transparent over the previous
+/* frame, so only the previous frame is ever held in memory.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class LevelAnimation implements Comp.Preview {
+
+    // name of GIF metadata format
+    private static final String FORMAT = "javax_imageio_gif_image_1.0";
+
+    // animation being written for a single color space
+    private static class Sequence {
+        private final ImageOutputStream out;
+        private final ImageWriter writer;
+        private final int width;
+        private final int height;
+        // pixels of the last frame written
+        private final int[] previous;
+        private int frames;
+
+        private Sequence(File file, int width, int height) throws IOException {
+            this.out = ImageIO.createImageOutputStream(file);
+            this.writer = ImageIO.getImageWritersByFormatName("gif").next();
+            this.width = width;
+            this.height = height;
+            this.previous = new int[width * height];
+            writer.setOutput(out);
+            writer.prepareWriteSequence(null);
+        }
+    }
+
+    // file name prefix of animations
+    private final String fileName;
+    // display time of each frame in hundredths of a second
+    private final int delay;
+    // animations being written, one per color space
+    private final Map<Comp.Mode, Sequence> sequences = new EnumMap<>(Comp.Mode.class);
+
+    // constructor
+    public LevelAnimation(String fileName, int delayMillis) {
+        this.fileName = fileName;
+        this.delay = Math.max(1, delayMillis / 10);
+    }
+
+    // append composite as next frame of the animation of mode
+    public void apply(Comp.Mode mode, LevelPlanner.Level level, int[] argb, int width, int height) {
+        long start = System.currentTimeMillis();
+        try {
+            Sequence sequence = sequences.get(mode);
+            if (sequence == null) {
+                sequence = new Sequence(new File(fileName + "-" + mode + ".gif"), width, height);
+                sequences.put(mode, sequence);
+            }
+            if (sequence.width != width || sequence.height != height) {
+                throw new IOException("expected " + sequence.width + "x" + sequence.height + " frames, got " + width + "x" + height);
+            }
+            Rectangle bounds = (sequence.frames == 0) ? new Rectangle(0, 0, width, height) : changedBounds(sequence.previous, argb, width, height);
+            // nothing to draw
+            if (bounds == null) {
+                return;
+            }
+
+            // alpha is dropped as in the JPEG outputs, unchanged pixels after
+            // the first frame are transparent so the previous frame shows
+            BufferedImage frame = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
+            int[] pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+            for (int j = 0; j < bounds.height; j++) {
+                for (int i = 0, k = (bounds.y + j) * width + bounds.x; i < bounds.width; i++, k++) {
+                    int v = argb[k] | 0xff000000;
+                    pixels[j * bounds.width + i] = (sequence.frames > 0 && v == sequence.previous[k]) ? 0 : v;
+                    sequence.previous[k] = v;
+                }
+            }
+            sequence.writer.writeToSequence(new IIOImage(frame, null, metadata(sequence, frame, bounds)), null);
+            sequence.frames++;
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+        System.out.println("animate level " + level.index + " finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+    }
+
+    // finish every animation, releasing every stream even if one fails to
+    // finish, then throwing the first failure
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Sequence sequence : sequences.values()) {
+            try {
+                try {
+                    sequence.writer.endWriteSequence();
+                } finally {
+                    sequence.writer.dispose();
+                    sequence.out.close();
+                }
+                System.out.println("animation of " + sequence.frames + " frames finished");
+            } catch (IOException e) {
+                failure = (failure == null) ? e : failure;
+            }
+        }
+        sequences.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // bounds of pixels of composite differing from previous frame, null if
+    // there are none
+    private static Rectangle changedBounds(int[] previous, int[] argb, int width, int height) {
+        int x0 = width;
+        int y0 = height;
+        int x1 = -1;
+        int y1 = -1;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0, k = j * width; i < width; i++, k++) {
+                if ((argb[k] | 0xff000000) != previous[k]) {
+                    x0 = Math.min(x0, i);
+                    x1 = Math.max(x1, i);
+                    y0 = Math.min(y0, j);
+                    y1 = j;
+                }
+            }
+        }
+        return (y1 < 0) ? null : new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+    }
+
+    // frame metadata placing frame at bounds over the previous frame, looping
+    // forever from the first frame
+    private IIOMetadata metadata(Sequence sequence, BufferedImage frame, Rectangle bounds) throws IOException {
+        IIOMetadata metadata = sequence.writer.getDefaultImageMetadata(new ImageTypeSpecifier(frame), null);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(FORMAT);
+        IIOMetadataNode descriptor = (IIOMetadataNode) root.getElementsByTagName("ImageDescriptor").item(0);
+        descriptor.setAttribute("imageLeftPosition", Integer.toString(bounds.x));
+        descriptor.setAttribute("imageTopPosition", Integer.toString(bounds.y));
+        descriptor.setAttribute("interlaceFlag", "FALSE");
+        IIOMetadataNode control = (IIOMetadataNode) root.getElementsByTagName("GraphicControlExtension").item(0);
+        control.setAttribute("disposalMethod", "doNotDispose");
+        control.setAttribute("delayTime", Integer.toString(delay));
+        if (sequence.frames == 0) {
+            IIOMetadataNode extensions = new IIOMetadataNode("ApplicationExtensions");
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            // sub-block 1, loop count 0 for forever
+            loop.setUserObject(new byte[] { 1, 0, 0 });
+            extensions.appendChild(loop);
+            root.appendChild(extensions);
+        }
+        metadata.setFromTree(FORMAT, root);
+        return metadata;
+    }
+}
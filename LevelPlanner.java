@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: LevelPlanner.java
+/*
+/* LevelPlanner decides which levels of resolution Comp computes before any
+/* work is done. The cell size of each level is derived from the requested
+/* depth and level progression, then the time and memory of each level is
+/* estimated from a per-pixel and per-cell cost model, and levels are truncated
+/* once a time or memory budget supplied by the caller would be exceeded.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class LevelPlanner {
+
+    // prime numbers used to mitigate interference in composited image
+    private static final int[] PRIME_LEVELS = { 1, 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37 };
+
+    // smallest cell size worth computing, for efficiency and fidelity
+    public static final int MIN_SIZE = 7;
+
+    // estimated cost of each stage in nanoseconds, per pixel unless noted
+    private static final double NS_PIXELATE = 8;
+    private static final double NS_CHANNEL = 10;
+    private static final double NS_COMPOSITE = 100;
+    private static final double NS_ENCODE = 70;
+    private static final double NS_NORMAL = 60;
+    private static final double NS_PER_CELL = 200;
+
+    // estimated bytes per pixel of a sparse channel layer and of a packed
+    // ARGB buffer
+    private static final long CHANNEL_BYTES = 4;
+    private static final long PACKED_BYTES = 4;
+
+    // channel images computed per level
+    private static final int CHANNELS = 3;
+    // images written per level (channels and level composite)
+    private static final int OUTPUTS = CHANNELS + 1;
+
+    // no limit on time or memory
+    public static final double UNLIMITED_MILLIS = Double.POSITIVE_INFINITY;
+    public static final long UNLIMITED_BYTES = Long.MAX_VALUE;
+
+    // single planned level of resolution
+    public static class Level {
+        // index of level, used in output file names
+        public final int index;
+        // cell size of pixelation
+        public final int size;
+        // number of cells covering the image
+        public final long cells;
+        // estimated time to compute and write the level
+        public final double millis;
+
+        public Level(int index, int size, long cells, double millis) {
+            this.index = index;
+            this.size = size;
+            this.cells = cells;
+            this.millis = millis;
+        }
+
+        // utility stringifying function
+        public String toString() {
+            return String.format("level %d: size %d, %d cells, ~%.0fms", index, size, cells, millis);
+        }
+    }
+
+    // levels chosen for a run along with their estimated cost
+    public static class Plan {
+        private final int width;
+        private final int height;
+        private final int requestedLevels;
+        private final List<Level> levels;
+        private final double millis;
+        private final long bytes;
+        private final String truncation;
+        // whether the coarsest level alone exceeds the budget
+        private final boolean overBudget;
+
+        public Plan(int width, int height, int requestedLevels, List<Level> levels, double millis, long bytes, String truncation, boolean overBudget) {
+            this.width = width;
+            this.height = height;
+            this.requestedLevels = requestedLevels;
+            this.levels = Collections.unmodifiableList(levels);
+            this.millis = millis;
+            this.bytes = bytes;
+            this.truncation = truncation;
+            this.overBudget = overBudget;
+        }
+
+        // getter for image width the plan was made for
+        public int getWidth() {
+            return this.width;
+        }
+
+        // getter for image height the plan was made for
+        public int getHeight() {
+            return this.height;
+        }
+
+        // getter for depth requested by caller
+        public int getRequestedLevels() {
+            return this.requestedLevels;
+        }
+
+        // getter for levels to compute, coarsest first
+        public List<Level> getLevels() {
+            return this.levels;
+        }
+
+        // getter for estimated total time
+        public double getMillis() {
+            return this.millis;
+        }
+
+        // getter for estimated peak memory
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        // whether the plan exceeds its budget because even the coarsest level
+        // does not fit, in which case the coarsest level is planned anyway
+        public boolean isOverBudget() {
+            return this.overBudget;
+        }
+
+        // same levels for a proxy of the image subsampled by factor, at cell
+        // sizes scaled down in proportion, so a preview of the proxy shows
+        // the pattern the full image will get, levels whose cells would fall
+        // below MIN_SIZE draw next to nothing and are dropped, which the plan
+        // reports
+        public Plan scaled(int factor) {
+            int proxyWidth = (width + factor - 1) / factor;
+            int proxyHeight = (height + factor - 1) / factor;
+            List<Level> proxyLevels = new ArrayList<>();
+            StringBuilder dropped = new StringBuilder();
+            double droppedMillis = 0;
+            for (Level level : levels) {
+                int size = (int) Math.round((double) level.size / factor);
+                if (size < MIN_SIZE) {
+                    dropped.append((dropped.length() == 0) ? "" : ", ").append(level.index);
+                    droppedMillis += level.millis;
+                    continue;
+                }
+                long cells = (long) ((proxyHeight + size - 1) / size) * ((proxyWidth + size - 1) / size);
+                proxyLevels.add(new Level(level.index, size, cells, level.millis / ((double) factor * factor)));
+            }
+            String proxyTruncation = truncation;
+            if (dropped.length() > 0) {
+                String note = "dropped " + ((proxyLevels.size() + 1 < levels.size()) ? "levels " : "level ") + dropped
+                    + " below cell size " + MIN_SIZE + " on proxy";
+                proxyTruncation = (truncation == null) ? note : truncation + ", " + note;
+            }
+            return new Plan(proxyWidth, proxyHeight, requestedLevels, proxyLevels, (millis - droppedMillis) / ((double) factor * factor), bytes / ((long) factor * factor), proxyTruncation, overBudget && !proxyLevels.isEmpty());
+        }
+
+        // utility stringifying function reporting the plan
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("plan for %dx%d: %d of %d levels, ~%.0fms, ~%dMB peak",
+                width, height, levels.size(), requestedLevels, millis, bytes >> 20));
+            if (overBudget) {
+                sb.append(" (over ").append(truncation).append(", coarsest level kept)");
+            } else if (truncation != null) {
+                sb.append(" (").append(truncation).append(")");
+            }
+            for (Level level : levels) {
+                sb.append(System.lineSeparator()).append("  ").append(level);
+            }
+            return sb.toString();
+        }
+    }
+
+    // plan levels without a budget
+    public static Plan plan(int width, int height, int levels, boolean prime) {
+        return plan(width, height, levels, prime, UNLIMITED_MILLIS, UNLIMITED_BYTES);
+    }
+
+    // plan levels, dropping the finest levels that do not fit in the given
+    // time and memory budgets, the coarsest level is always kept so that a
+    // run produces an image, and the plan marked over budget if it does not fit
+    public static Plan plan(int width, int height, int levels, boolean prime, double budgetMillis, long budgetBytes) {
+        long pixels = (long) width * height;
+        List<Level> planned = new ArrayList<>();
+        double millis = 0;
+        String truncation = null;
+        boolean overBudget = false;
+
+        // input image, final composite, sparse channels of the current level
+        // and packed composite buffer are always live
+        long bytes = pixels * (2 * ImagePool.BYTES_PER_PIXEL + CHANNELS * CHANNEL_BYTES + PACKED_BYTES);
+        // output of normal composite
+        double fixedMillis = (NS_ENCODE * pixels) / 1e6;
+
+        for (int i = 0; i < levels; i++) {
+            // too many levels of depth requested
+            if (prime && i >= PRIME_LEVELS.length) {
+                truncation = "no more prime levels";
+                break;
+            }
+
+            int size = size(width, i, prime);
+            if (size < MIN_SIZE) {
+                truncation = "cell size below " + MIN_SIZE;
+                break;
+            }
+
+            long cells = (long) ((height + size - 1) / size) * ((width + size - 1) / size);
+            double levelMillis = (pixels * (NS_PIXELATE + CHANNELS * NS_CHANNEL + NS_COMPOSITE + OUTPUTS * NS_ENCODE + NS_NORMAL)
+                + cells * NS_PER_CELL) / 1e6;
+            // each level keeps its composite until the normal composite,
+            // which packs it into a buffer of its own
+            long levelBytes = pixels * (ImagePool.BYTES_PER_PIXEL + PACKED_BYTES);
+
+            if (millis + levelMillis + fixedMillis > budgetMillis) {
+                truncation = "time budget";
+            } else if (bytes + levelBytes > budgetBytes) {
+                truncation = "memory budget";
+            }
+            if (truncation != null) {
+                if (!planned.isEmpty()) {
+                    break;
+                }
+                overBudget = true;
+            }
+
+            millis += levelMillis;
+            bytes += levelBytes;
+            planned.add(new Level(i, size, cells, levelMillis));
+            if (overBudget) {
+                break;
+            }
+        }
+
+        return new Plan(width, height, levels, planned, millis + fixedMillis, bytes, truncation, overBudget);
+    }
+
+    // cell size of pixelation at given level
+    public static int size(int width, int level, boolean prime) {
+        return (prime) ?
+            (int) ((double) width / Math.pow(PRIME_LEVELS[level], 2))
+            :
+            (int) ((double) width / Math.pow(2, level));
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.Arrays;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: LookupTable.java
+/*
+/* LookupTable objects hold a 256-entry table for each RGBA component, so that
+/* point operations which depend only on the value of a single component can be
+/* precomputed once and applied to every pixel with four array reads.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class LookupTable {
+
+    // number of entries per component for 8-bit channels
+    public static final int SIZE = 256;
+
+    // luminance weights used by Pixel.getLum, tabulated per component
+    private static final double[] LUM_R = new double[SIZE];
+    private static final double[] LUM_G = new double[SIZE];
+    private static final double[] LUM_B = new double[SIZE];
+
+    static {
+        for (int v = 0; v < SIZE; v++) {
+            LUM_R[v] = 0.2126 * v;
+            LUM_G[v] = 0.7152 * v;
+            LUM_B[v] = 0.0722 * v;
+        }
+    }
+
+    // per-component tables
+    private final int[] r;
+    private final int[] g;
+    private final int[] b;
+    private final int[] a;
+
+    // constructor
+    public LookupTable(int[] r, int[] g, int[] b, int[] a) {
+        if (r.length != SIZE || g.length != SIZE || b.length != SIZE || a.length != SIZE) {
+            throw new IllegalArgumentException("lookup tables must have " + SIZE + " entries");
+        }
+        this.r = r;
+        this.g = g;
+        this.b = b;
+        this.a = a;
+    }
+
+    // table that leaves every component unchanged
+    public static LookupTable identity() {
+        int[] id = new int[SIZE];
+        for (int v = 0; v < SIZE; v++) {
+            id[v] = v;
+        }
+        return new LookupTable(id, id.clone(), id.clone(), id.clone());
+    }
+
+    // table that leaves color unchanged and sets alpha to fully opaque
+    public static LookupTable opaque() {
+        LookupTable id = identity();
+        int[] a = new int[SIZE];
+        Arrays.fill(a, 255);
+        return new LookupTable(id.r, id.g, id.b, a);
+    }
+
+    // table equivalent to p.mult(mult).add(add), as used for channel
+    // separation (alpha is left unchanged, as in Pixel.mult and Pixel.add)
+    public static LookupTable multAdd(Pixel mult, Pixel add) {
+        int[] r = new int[SIZE];
+        int[] g = new int[SIZE];
+        int[] b = new int[SIZE];
+        for (int v = 0; v < SIZE; v++) {
+            r[v] = (v * mult.r) / 255 + add.r;
+            g[v] = (v * mult.g) / 255 + add.g;
+            b[v] = (v * mult.b) / 255 + add.b;
+        }
+        return new LookupTable(r, g, b, identity().a);
+    }
+
+    // compose with another table, applying this table first
+    public LookupTable then(LookupTable next) {
+        int[] r = new int[SIZE];
+        int[] g = new int[SIZE];
+        int[] b = new int[SIZE];
+        int[] a = new int[SIZE];
+        for (int v = 0; v < SIZE; v++) {
+            r[v] = next.r[index(this.r[v])];
+            g[v] = next.g[index(this.g[v])];
+            b[v] = next.b[index(this.b[v])];
+            a[v] = next.a[index(this.a[v])];
+        }
+        return new LookupTable(r, g, b, a);
+    }
+
+    // apply table to pixel in place
+    public void apply(Pixel p) {
+        p.r = r[index(p.r)];
+        p.g = g[index(p.g)];
+        p.b = b[index(p.b)];
+        p.a = a[index(p.a)];
+    }
+
+    // apply table to packed ARGB value
+    public int apply(int argb) {
+        return (index(a[argb >>> 24]) << 24)
+            | (index(r[(argb >> 16) & 0xff]) << 16)
+            | (index(g[(argb >> 8) & 0xff]) << 8)
+            | index(b[argb & 0xff]);
+    }
+
+    // set pixel to its luminance using per-component tables, matching
+    // Pixel.getLum exactly
+    public static void applyLum(Pixel p) {
+        int lum = (int) Math.floor(LUM_R[index(p.r)] + LUM_G[index(p.g)] + LUM_B[index(p.b)]);
+        p.r = lum;
+        p.g = lum;
+        p.b = lum;
+    }
+
+    // clamp component value to a valid table index
+    private static int index(int v) {
+        return (v > 255) ? 255 : (v < 0) ? 0 : v;
+    }
+}
@@ -0,0 +1,287 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: PngWriter.java
+/*
+/* PngWriter encodes packed ARGB pixels as truecolor PNG files, with or without
+/* alpha, compressing blocks of rows in parallel. Each block is filtered and
+/* deflated on its own, primed with the last window of the block before it so
+/* matches still reach across block boundaries, and ended on a byte boundary
+/* so the compressed blocks simply concatenate into a single zlib stream. The
+/* compression level trades speed for size as it does for Deflater.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class PngWriter {
+
+    // compression level used unless one is given
+    public static final int DEFAULT_LEVEL = 6;
+    // range of compression levels, as for Deflater
+    public static final int MIN_LEVEL = Deflater.NO_COMPRESSION;
+    public static final int MAX_LEVEL = Deflater.BEST_COMPRESSION;
+
+    // uncompressed bytes per block, rounded to whole rows
+    private static final int BLOCK_BYTES = 1 << 18;
+    // deflate window, the most history a block can refer back to
+    private static final int WINDOW = 1 << 15;
+    // largest prime below 65536, modulus of Adler-32
+    private static final int ADLER_BASE = 65521;
+
+    private static final byte[] SIGNATURE = { (byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n' };
+
+    // row filters
+    private static final int NONE = 0;
+    private static final int SUB = 1;
+    private static final int UP = 2;
+    private static final int AVERAGE = 3;
+    private static final int PAETH = 4;
+
+    // compressed block along with checksum of its uncompressed bytes
+    private static class Block {
+        private byte[] data;
+        private int adler;
+        private int length;
+    }
+
+    // write packed ARGB pixels at default compression level
+    public static void write(int[] argb, int width, int height, boolean alpha, File file) throws IOException {
+        write(argb, width, height, alpha, DEFAULT_LEVEL, file);
+    }
+
+    // write packed ARGB pixels at compression level from 0 (fastest, stored)
+    // to 9 (smallest), keeping alpha if asked to
+    public static void write(int[] argb, int width, int height, boolean alpha, int level, File file) throws IOException {
+        // fail before any block is compressed
+        if (level < MIN_LEVEL || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("compression level " + level + " outside " + MIN_LEVEL + " to " + MAX_LEVEL);
+        }
+        long start = System.currentTimeMillis();
+        int stride = 1 + width * ((alpha) ? 4 : 3);
+        int rowsPerBlock = Math.max(1, BLOCK_BYTES / stride);
+        int blockCount = (height + rowsPerBlock - 1) / rowsPerBlock;
+
+        Block[] blocks = new Block[blockCount];
+        IntStream.range(0, blockCount).parallel().forEach(b -> {
+            int y0 = b * rowsPerBlock;
+            int rows = Math.min(rowsPerBlock, height - y0);
+            blocks[b] = compress(argb, width, alpha, level, stride, y0, rows, b == blockCount - 1);
+        });
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.write(SIGNATURE);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream ihdr = new DataOutputStream(header);
+            ihdr.writeInt(width);
+            ihdr.writeInt(height);
+            // 8 bits per sample, truecolor with or without alpha, deflate,
+            // adaptive filtering, no interlace
+            ihdr.writeByte(8);
+            ihdr.writeByte((alpha) ? 6 : 2);
+            ihdr.writeByte(0);
+            ihdr.writeByte(0);
+            ihdr.writeByte(0);
+            chunk(out, "IHDR", header.toByteArray());
+
+            // zlib header ahead of the first block, checksum after the last
+            int adler = 1;
+            for (int b = 0; b < blockCount; b++) {
+                byte[] data = blocks[b].data;
+                if (b == 0) {
+                    data = concat(zlibHeader(level), data);
+                }
+                adler = (b == 0) ? blocks[b].adler : combine(adler, blocks[b].adler, blocks[b].length);
+                if (b == blockCount - 1) {
+                    data = concat(data, new byte[] { (byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler });
+                }
+                chunk(out, "IDAT", data);
+                blocks[b] = null;
+            }
+            chunk(out, "IEND", new byte[0]);
+        }
+        System.out.println("png " + file.getName() + " finished: " + (((double) System.currentTimeMillis() - start) / 1000) + "s");
+    }
+
+    // filter and deflate rows from y0, primed with the window of filtered
+    // bytes preceding them, ending the stream if last
+    private static Block compress(int[] argb, int width, boolean alpha, int level, int stride, int y0, int rows, boolean last) {
+        // the rows before the block are filtered again for the dictionary
+        int dictionaryRows = Math.min(y0, (WINDOW + stride - 1) / stride);
+        byte[] raw = new byte[(dictionaryRows + rows) * stride];
+        byte[] previous = new byte[stride];
+        byte[] current = new byte[stride];
+        byte[][] candidates = new byte[5][stride];
+        if (y0 - dictionaryRows > 0) {
+            pixels(argb, width, alpha, y0 - dictionaryRows - 1, previous);
+        }
+        for (int j = 0; j < dictionaryRows + rows; j++) {
+            pixels(argb, width, alpha, y0 - dictionaryRows + j, current);
+            filter(current, previous, (alpha) ? 4 : 3, level, candidates, raw, j * stride);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        Deflater deflater = new Deflater(level, true);
+        int offset = dictionaryRows * stride;
+        if (offset > 0) {
+            int dictionary = Math.min(offset, WINDOW);
+            deflater.setDictionary(raw, offset - dictionary, dictionary);
+        }
+        deflater.setInput(raw, offset, rows * stride);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rows * stride / 4 + 64);
+        byte[] buffer = new byte[1 << 16];
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } else {
+            // sync flush ends on a byte boundary without ending the stream
+            int n;
+            do {
+                n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, n);
+            } while (n == buffer.length);
+        }
+        deflater.end();
+
+        Adler32 adler = new Adler32();
+        adler.update(raw, offset, rows * stride);
+        Block block = new Block();
+        block.data = out.toByteArray();
+        block.adler = (int) adler.getValue();
+        block.length = rows * stride;
+        return block;
+    }
+
+    // row of pixels as bytes after the filter type byte, RGBA or RGB
+    private static void pixels(int[] argb, int width, boolean alpha, int y, byte[] row) {
+        for (int i = 0, k = y * width, p = 1; i < width; i++, k++) {
+            int v = argb[k];
+            row[p++] = (byte) (v >> 16);
+            row[p++] = (byte) (v >> 8);
+            row[p++] = (byte) v;
+            if (alpha) {
+                row[p++] = (byte) (v >>> 24);
+            }
+        }
+    }
+
+    // filter row against previous row into dest, at level 0 rows are left
+    // unfiltered, otherwise the filter with the smallest sum of absolute
+    // differences is chosen
+    private static void filter(byte[] row, byte[] previous, int bpp, int level, byte[][] candidates, byte[] dest, int offset) {
+        int length = row.length;
+        if (level == 0) {
+            dest[offset] = NONE;
+            System.arraycopy(row, 1, dest, offset + 1, length - 1);
+            return;
+        }
+        byte[] none = candidates[NONE];
+        byte[] sub = candidates[SUB];
+        byte[] up = candidates[UP];
+        byte[] average = candidates[AVERAGE];
+        byte[] paeth = candidates[PAETH];
+        long[] sums = new long[PAETH + 1];
+        // first pixel has no left neighbor
+        for (int p = 1; p <= bpp && p < length; p++) {
+            int x = row[p] & 0xff;
+            int b = previous[p] & 0xff;
+            none[p] = (byte) x;
+            sub[p] = (byte) x;
+            up[p] = (byte) (x - b);
+            average[p] = (byte) (x - (b >> 1));
+            paeth[p] = (byte) (x - b);
+        }
+        for (int p = bpp + 1; p < length; p++) {
+            int x = row[p] & 0xff;
+            int a = row[p - bpp] & 0xff;
+            int b = previous[p] & 0xff;
+            int c = previous[p - bpp] & 0xff;
+            none[p] = (byte) x;
+            sub[p] = (byte) (x - a);
+            up[p] = (byte) (x - b);
+            average[p] = (byte) (x - ((a + b) >> 1));
+            paeth[p] = (byte) (x - paeth(a, b, c));
+        }
+        for (int p = 1; p < length; p++) {
+            sums[NONE] += Math.abs(none[p]);
+            sums[SUB] += Math.abs(sub[p]);
+            sums[UP] += Math.abs(up[p]);
+            sums[AVERAGE] += Math.abs(average[p]);
+            sums[PAETH] += Math.abs(paeth[p]);
+        }
+        int best = NONE;
+        for (int type = SUB; type <= PAETH; type++) {
+            if (sums[type] < sums[best]) {
+                best = type;
+            }
+        }
+        dest[offset] = (byte) best;
+        System.arraycopy(candidates[best], 1, dest, offset + 1, length - 1);
+    }
+
+    // Paeth predictor, whichever neighbor is closest to a + b - c
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        return (pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c;
+    }
+
+    // Adler-32 of two consecutive runs of bytes from the checksums of each,
+    // given the length of the second
+    private static int combine(int adler1, int adler2, int length2) {
+        long rem = length2 % ADLER_BASE;
+        long a1 = adler1 & 0xffff;
+        long b1 = (adler1 >>> 16) & 0xffff;
+        long a2 = adler2 & 0xffff;
+        long b2 = (adler2 >>> 16) & 0xffff;
+        long a = (a1 + a2 + ADLER_BASE - 1) % ADLER_BASE;
+        long b = (b1 + b2 + rem * a1 % ADLER_BASE + ADLER_BASE - rem) % ADLER_BASE;
+        return (int) ((b << 16) | a);
+    }
+
+    // zlib stream header for deflate with a 32K window, flagged with the
+    // compression level
+    private static byte[] zlibHeader(int level) {
+        int cmf = 0x78;
+        int flevel = (level < 2) ? 0 : (level < 6) ? 1 : (level == 6) ? 2 : 3;
+        int flg = flevel << 6;
+        flg += 31 - ((cmf * 256 + flg) % 31);
+        return new byte[] { (byte) cmf, (byte) flg };
+    }
+
+    // write chunk of given type with its length and checksum
+    private static void chunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // bytes of first array followed by bytes of second
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = new byte[first.length + second.length];
+        System.arraycopy(first, 0, joined, 0, first.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+}
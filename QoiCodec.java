@@ -0,0 +1,248 @@
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: QoiCodec.java
+/*
+/* QoiCodec reads and writes packed ARGB pixels in the Quite OK Image format,
+/* a lossless format that encodes each pixel as a run, an index into recently
+/* seen colors, a small difference from the previous pixel or the pixel itself.
+/* The channel and level images of Comp are mostly long runs of few colors, so
+/* they encode in a single cheap pass, far faster than JPEG and without loss.
+/* Files are written and read through a file channel in large blocks.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class QoiCodec {
+
+    // "qoif" in ASCII
+    private static final int MAGIC = 0x716f6966;
+    private static final int HEADER_BYTES = 14;
+    // seven zero bytes followed by a one
+    private static final byte[] END = { 0, 0, 0, 0, 0, 0, 0, 1 };
+
+    // opcodes, two bit tags followed by six bits of payload or whole bytes
+    private static final int OP_INDEX = 0x00;
+    private static final int OP_DIFF = 0x40;
+    private static final int OP_LUMA = 0x80;
+    private static final int OP_RUN = 0xc0;
+    private static final int OP_RGB = 0xfe;
+    private static final int OP_RGBA = 0xff;
+    private static final int MASK_2 = 0xc0;
+
+    // longest run of a single opcode, 63 and 64 would collide with OP_RGB
+    // and OP_RGBA
+    private static final int MAX_RUN = 62;
+    // bytes of the largest encoding of a single pixel
+    private static final int MAX_PIXEL_BYTES = 5;
+    // size of blocks written to the channel
+    private static final int BLOCK = 1 << 16;
+
+    // write packed ARGB pixels to file
+    public static void write(int[] argb, int width, int height, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK);
+            buffer.putInt(MAGIC).putInt(width).putInt(height);
+            // four channels, sRGB with linear alpha
+            buffer.put((byte) 4).put((byte) 0);
+
+            int[] index = new int[64];
+            int previous = 0xff000000;
+            int run = 0;
+            int length = width * height;
+            for (int k = 0; k < length; k++) {
+                // leave room for a run and the largest pixel encoding
+                if (buffer.remaining() < MAX_PIXEL_BYTES + 1) {
+                    flush(channel, buffer);
+                }
+                int px = argb[k];
+                if (px == previous) {
+                    run++;
+                    if (run == MAX_RUN || k == length - 1) {
+                        buffer.put((byte) (OP_RUN | (run - 1)));
+                        run = 0;
+                    }
+                    continue;
+                }
+                if (run > 0) {
+                    buffer.put((byte) (OP_RUN | (run - 1)));
+                    run = 0;
+                }
+
+                int hash = hash(px);
+                if (index[hash] == px) {
+                    buffer.put((byte) (OP_INDEX | hash));
+                } else {
+                    index[hash] = px;
+                    if ((px >>> 24) == (previous >>> 24)) {
+                        int dr = ((px >> 16) & 0xff) - ((previous >> 16) & 0xff);
+                        int dg = ((px >> 8) & 0xff) - ((previous >> 8) & 0xff);
+                        int db = (px & 0xff) - (previous & 0xff);
+                        // differences wrap around as bytes
+                        dr = (byte) dr;
+                        dg = (byte) dg;
+                        db = (byte) db;
+                        int drdg = (byte) (dr - dg);
+                        int dbdg = (byte) (db - dg);
+                        if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+                            buffer.put((byte) (OP_DIFF | ((dr + 2) << 4) | ((dg + 2) << 2) | (db + 2)));
+                        } else if (dg >= -32 && dg <= 31 && drdg >= -8 && drdg <= 7 && dbdg >= -8 && dbdg <= 7) {
+                            buffer.put((byte) (OP_LUMA | (dg + 32)));
+                            buffer.put((byte) (((drdg + 8) << 4) | (dbdg + 8)));
+                        } else {
+                            buffer.put((byte) OP_RGB);
+                            buffer.put((byte) (px >> 16)).put((byte) (px >> 8)).put((byte) px);
+                        }
+                    } else {
+                        buffer.put((byte) OP_RGBA);
+                        buffer.put((byte) (px >> 16)).put((byte) (px >> 8)).put((byte) px).put((byte) (px >>> 24));
+                    }
+                }
+                previous = px;
+            }
+            if (buffer.remaining() < 1 + END.length) {
+                flush(channel, buffer);
+            }
+            if (run > 0) {
+                buffer.put((byte) (OP_RUN | (run - 1)));
+            }
+            buffer.put(END);
+            flush(channel, buffer);
+        }
+    }
+
+    // read file written by write or any other QOI encoder into packed ARGB
+    // pixels, dest is used if it is large enough, dimensions are stored into
+    // size as width then height
+    public static int[] read(File file, int[] dest, int[] size) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + ": too large");
+            }
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until the buffer is full
+            }
+            buffer.flip();
+        }
+        if (buffer.remaining() < HEADER_BYTES + END.length || buffer.getInt() != MAGIC) {
+            throw new IOException(file + ": not a QOI file");
+        }
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int channels = buffer.get();
+        buffer.get();
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE || (channels != 3 && channels != 4)) {
+            throw new IOException(file + ": bad QOI header");
+        }
+        // a single run byte covers at most MAX_RUN pixels, so larger images
+        // cannot be encoded in the bytes present and are rejected before
+        // their pixels are allocated
+        if ((long) width * height > (long) MAX_RUN * (buffer.limit() - HEADER_BYTES - END.length)) {
+            throw new IOException(file + ": QOI header claims " + width + "x" + height + " pixels, more than its data can encode");
+        }
+        int length = width * height;
+        int[] argb = (dest != null && dest.length >= length) ? dest : new int[length];
+        size[0] = width;
+        size[1] = height;
+
+        byte[] bytes = buffer.array();
+        int p = buffer.position();
+        int end = bytes.length - END.length;
+        int[] index = new int[64];
+        int px = 0xff000000;
+        for (int k = 0; k < length; ) {
+            if (p >= end) {
+                throw new IOException(file + ": truncated QOI data");
+            }
+            int b1 = bytes[p++] & 0xff;
+            if (p + payload(b1) > end) {
+                throw new IOException(file + ": truncated QOI data");
+            }
+            if (b1 == OP_RGB) {
+                px = (px & 0xff000000) | ((bytes[p] & 0xff) << 16) | ((bytes[p + 1] & 0xff) << 8) | (bytes[p + 2] & 0xff);
+                p += 3;
+            } else if (b1 == OP_RGBA) {
+                px = ((bytes[p + 3] & 0xff) << 24) | ((bytes[p] & 0xff) << 16) | ((bytes[p + 1] & 0xff) << 8) | (bytes[p + 2] & 0xff);
+                p += 4;
+            } else if ((b1 & MASK_2) == OP_INDEX) {
+                px = index[b1];
+            } else if ((b1 & MASK_2) == OP_DIFF) {
+                int r = (((px >> 16) & 0xff) + ((b1 >> 4) & 3) - 2) & 0xff;
+                int g = (((px >> 8) & 0xff) + ((b1 >> 2) & 3) - 2) & 0xff;
+                int b = ((px & 0xff) + (b1 & 3) - 2) & 0xff;
+                px = (px & 0xff000000) | (r << 16) | (g << 8) | b;
+            } else if ((b1 & MASK_2) == OP_LUMA) {
+                int b2 = bytes[p++] & 0xff;
+                int dg = (b1 & 0x3f) - 32;
+                int r = (((px >> 16) & 0xff) + dg - 8 + ((b2 >> 4) & 0x0f)) & 0xff;
+                int g = (((px >> 8) & 0xff) + dg) & 0xff;
+                int b = ((px & 0xff) + dg - 8 + (b2 & 0x0f)) & 0xff;
+                px = (px & 0xff000000) | (r << 16) | (g << 8) | b;
+            } else {
+                // run of previous pixel
+                int run = Math.min((b1 & 0x3f) + 1, length - k);
+                Arrays.fill(argb, k, k + run, px);
+                index[hash(px)] = px;
+                k += run;
+                continue;
+            }
+            index[hash(px)] = px;
+            argb[k++] = px;
+        }
+        return argb;
+    }
+
+    // dimensions of file, read from its header alone
+    public static Dimension readSize(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading until the header is full
+            }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                throw new IOException(file + ": not a QOI file");
+            }
+            return new Dimension(header.getInt(), header.getInt());
+        }
+    }
+
+    // whether file is named as a QOI file
+    public static boolean isQoi(File file) {
+        return file.getName().toLowerCase().endsWith(".qoi");
+    }
+
+    // bytes following opcode b1 before the next opcode
+    private static int payload(int b1) {
+        if (b1 == OP_RGB) {
+            return 3;
+        } else if (b1 == OP_RGBA) {
+            return 4;
+        }
+        return ((b1 & MASK_2) == OP_LUMA) ? 1 : 0;
+    }
+
+    // position of pixel in the index of recently seen colors
+    private static int hash(int px) {
+        return (((px >> 16) & 0xff) * 3 + ((px >> 8) & 0xff) * 5 + (px & 0xff) * 7 + (px >>> 24) * 11) & 63;
+    }
+
+    // write buffered bytes to channel and empty buffer
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
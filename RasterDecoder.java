@@ -0,0 +1,472 @@
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: RasterDecoder.java
+/*
+/* RasterDecoder reads rows of any BufferedImage as packed ARGB pixels, reading
+/* the data buffer of the image directly with a loop specialized to the layout
+/* of its raster: interleaved or banded 8 and 16 bit components, gray or RGB
+/* with or without alpha, pixels packed into integers, shorts or bytes, and
+/* indexed pixels of any depth. Premultiplied alpha is divided out. Images in
+/* other color spaces, such as CMYK, are converted a band of rows at a time.
+/* Gray samples are taken as display values, as they are stored in the file.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class RasterDecoder {
+
+    // masks of packed ARGB pixels
+    private static final int[] ARGB_MASKS = { 0xff0000, 0xff00, 0xff, 0xff000000 };
+
+    // component samples read straight from the banks of the data buffer
+    private static class Components implements BandedImage.Rows {
+        private final int width;
+        private final int numBands;
+        private final byte[][] bytes;
+        private final short[][] shorts;
+        // index of the first sample of each band in its bank
+        private final int[] base;
+        private final int scanline;
+        private final int pixelStride;
+        private final int[] sizes;
+        private final boolean premultiplied;
+        // samples of a row scaled to 8 bits, only for components that are not
+        // 8 bit bytes
+        private final int[][] samples;
+
+        private Components(int width, int numBands, byte[][] bytes, short[][] shorts, int[] base, int scanline, int pixelStride, int[] sizes, boolean premultiplied) {
+            this.width = width;
+            this.numBands = numBands;
+            this.bytes = bytes;
+            this.shorts = shorts;
+            this.base = base;
+            this.scanline = scanline;
+            this.pixelStride = pixelStride;
+            this.sizes = sizes;
+            this.premultiplied = premultiplied;
+            boolean direct = bytes != null;
+            for (int size : sizes) {
+                direct &= size == 8;
+            }
+            this.samples = (direct) ? null : new int[numBands][width];
+        }
+
+        public void copy(int y0, int rows, int[] dest) {
+            for (int j = 0; j < rows; j++) {
+                int row = (y0 + j) * scanline;
+                int start = j * width;
+                if (samples == null) {
+                    copyBytes(row, dest, start);
+                } else {
+                    for (int b = 0; b < numBands; b++) {
+                        load(b, row, samples[b]);
+                    }
+                    assemble(dest, start);
+                }
+            }
+            if (premultiplied) {
+                unpremultiply(dest, rows * width);
+            }
+        }
+
+        // 8 bit components, read in place
+        private void copyBytes(int row, int[] dest, int start) {
+            byte[] c0 = bytes[0];
+            int k0 = base[0] + row;
+            int step = pixelStride;
+            switch (numBands) {
+                case 1:
+                    for (int i = 0; i < width; i++, k0 += step) {
+                        dest[start + i] = 0xff000000 | (c0[k0] & 0xff) * 0x010101;
+                    }
+                    break;
+                case 2: {
+                    byte[] c1 = bytes[1];
+                    for (int i = 0, k1 = base[1] + row; i < width; i++, k0 += step, k1 += step) {
+                        dest[start + i] = ((c1[k1] & 0xff) << 24) | (c0[k0] & 0xff) * 0x010101;
+                    }
+                    break;
+                }
+                case 3: {
+                    byte[] c1 = bytes[1];
+                    byte[] c2 = bytes[2];
+                    for (int i = 0, k1 = base[1] + row, k2 = base[2] + row; i < width; i++, k0 += step, k1 += step, k2 += step) {
+                        dest[start + i] = 0xff000000 | ((c0[k0] & 0xff) << 16) | ((c1[k1] & 0xff) << 8) | (c2[k2] & 0xff);
+                    }
+                    break;
+                }
+                default: {
+                    byte[] c1 = bytes[1];
+                    byte[] c2 = bytes[2];
+                    byte[] c3 = bytes[3];
+                    for (int i = 0, k1 = base[1] + row, k2 = base[2] + row, k3 = base[3] + row; i < width; i++, k0 += step, k1 += step, k2 += step, k3 += step) {
+                        dest[start + i] = ((c3[k3] & 0xff) << 24) | ((c0[k0] & 0xff) << 16) | ((c1[k1] & 0xff) << 8) | (c2[k2] & 0xff);
+                    }
+                    break;
+                }
+            }
+        }
+
+        // samples of band b along row, scaled to 8 bits
+        private void load(int b, int row, int[] dest) {
+            int k = base[b] + row;
+            if (bytes != null) {
+                byte[] bank = bytes[b];
+                for (int i = 0; i < width; i++, k += pixelStride) {
+                    dest[i] = bank[k] & 0xff;
+                }
+            } else {
+                short[] bank = shorts[b];
+                for (int i = 0; i < width; i++, k += pixelStride) {
+                    dest[i] = bank[k] & 0xffff;
+                }
+            }
+            scale(dest, width, sizes[b]);
+        }
+
+        // packed pixels from scaled samples of each band
+        private void assemble(int[] dest, int start) {
+            int[] s0 = samples[0];
+            switch (numBands) {
+                case 1:
+                    for (int i = 0; i < width; i++) {
+                        dest[start + i] = 0xff000000 | s0[i] * 0x010101;
+                    }
+                    break;
+                case 2:
+                    for (int i = 0; i < width; i++) {
+                        dest[start + i] = (samples[1][i] << 24) | s0[i] * 0x010101;
+                    }
+                    break;
+                case 3:
+                    for (int i = 0; i < width; i++) {
+                        dest[start + i] = 0xff000000 | (s0[i] << 16) | (samples[1][i] << 8) | samples[2][i];
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < width; i++) {
+                        dest[start + i] = (samples[3][i] << 24) | (s0[i] << 16) | (samples[1][i] << 8) | samples[2][i];
+                    }
+                    break;
+            }
+        }
+    }
+
+    // pixels packed one per element with a mask per component
+    private static class Packed implements BandedImage.Rows {
+        private final int width;
+        private final DataBuffer buffer;
+        private final int base;
+        private final int scanline;
+        private final int[] masks;
+        private final int[] offsets;
+        private final int[] sizes;
+        private final boolean alpha;
+        private final boolean premultiplied;
+        // components already where packed ARGB pixels hold them
+        private final boolean argb;
+
+        private Packed(int width, DataBuffer buffer, int base, int scanline, int[] masks, int[] offsets, int[] sizes, boolean premultiplied) {
+            this.width = width;
+            this.buffer = buffer;
+            this.base = base;
+            this.scanline = scanline;
+            this.masks = masks;
+            this.offsets = offsets;
+            this.sizes = sizes;
+            this.alpha = masks.length == 4;
+            this.premultiplied = premultiplied;
+            boolean standard = buffer instanceof DataBufferInt;
+            for (int b = 0; b < masks.length; b++) {
+                standard &= masks[b] == ARGB_MASKS[b];
+            }
+            this.argb = standard;
+        }
+
+        public void copy(int y0, int rows, int[] dest) {
+            for (int j = 0; j < rows; j++) {
+                int k = base + (y0 + j) * scanline;
+                int start = j * width;
+                if (argb) {
+                    int[] bank = ((DataBufferInt) buffer).getData();
+                    if (alpha) {
+                        System.arraycopy(bank, k, dest, start, width);
+                    } else {
+                        for (int i = 0; i < width; i++) {
+                            dest[start + i] = 0xff000000 | bank[k + i];
+                        }
+                    }
+                    continue;
+                }
+                // load elements then pick out each component
+                if (buffer instanceof DataBufferInt) {
+                    System.arraycopy(((DataBufferInt) buffer).getData(), k, dest, start, width);
+                } else if (buffer instanceof DataBufferUShort) {
+                    short[] bank = ((DataBufferUShort) buffer).getData();
+                    for (int i = 0; i < width; i++) {
+                        dest[start + i] = bank[k + i] & 0xffff;
+                    }
+                } else {
+                    byte[] bank = ((DataBufferByte) buffer).getData();
+                    for (int i = 0; i < width; i++) {
+                        dest[start + i] = bank[k + i] & 0xff;
+                    }
+                }
+                for (int i = start; i < start + width; i++) {
+                    int v = dest[i];
+                    int px = (alpha) ? component(v, 3) << 24 : 0xff000000;
+                    dest[i] = px | (component(v, 0) << 16) | (component(v, 1) << 8) | component(v, 2);
+                }
+            }
+            if (premultiplied) {
+                unpremultiply(dest, rows * width);
+            }
+        }
+
+        // component b of packed element v, scaled to 8 bits
+        private int component(int v, int b) {
+            int c = (v & masks[b]) >>> offsets[b];
+            int size = sizes[b];
+            if (size == 8) {
+                return c;
+            }
+            int max = (1 << size) - 1;
+            return (c * 255 + max / 2) / max;
+        }
+    }
+
+    // indices into a color map, one per element or several packed per byte
+    private static class Indexed implements BandedImage.Rows {
+        private final int width;
+        private final int[] colors;
+        private final DataBuffer buffer;
+        private final int base;
+        private final int scanline;
+        // distance between indices one per element
+        private final int pixelStride;
+        // bit of the first pixel of each row, for indices packed into bytes
+        private final int firstBit;
+        private final int bits;
+        private final boolean packedBits;
+
+        private Indexed(int width, int[] colors, DataBuffer buffer, int base, int scanline, int pixelStride, int firstBit, int bits, boolean packedBits) {
+            this.width = width;
+            this.colors = colors;
+            this.buffer = buffer;
+            this.base = base;
+            this.scanline = scanline;
+            this.pixelStride = pixelStride;
+            this.firstBit = firstBit;
+            this.bits = bits;
+            this.packedBits = packedBits;
+        }
+
+        public void copy(int y0, int rows, int[] dest) {
+            for (int j = 0; j < rows; j++) {
+                int k = base + (y0 + j) * scanline;
+                int start = j * width;
+                if (packedBits) {
+                    // first pixel in the most significant bits of each byte
+                    byte[] bank = ((DataBufferByte) buffer).getData();
+                    int mask = (1 << bits) - 1;
+                    for (int i = 0, bit = firstBit; i < width; i++, bit += bits) {
+                        int index = (bank[k + (bit >> 3)] >> (8 - bits - (bit & 7))) & mask;
+                        dest[start + i] = colors[index];
+                    }
+                } else if (buffer instanceof DataBufferByte) {
+                    byte[] bank = ((DataBufferByte) buffer).getData();
+                    for (int i = 0; i < width; i++, k += pixelStride) {
+                        dest[start + i] = colors[bank[k] & 0xff];
+                    }
+                } else {
+                    short[] bank = ((DataBufferUShort) buffer).getData();
+                    for (int i = 0; i < width; i++, k += pixelStride) {
+                        dest[start + i] = colors[bank[k] & 0xffff];
+                    }
+                }
+            }
+        }
+    }
+
+    // whether pixels decoded from img carry alpha
+    public static boolean hasAlpha(BufferedImage img) {
+        return img.getColorModel().hasAlpha();
+    }
+
+    // source of packed ARGB rows of img, reading its raster in place where its
+    // layout is one of the specialized ones
+    public static BandedImage.Rows rows(BufferedImage img) {
+        ColorModel model = img.getColorModel();
+        WritableRaster raster = img.getRaster();
+        BandedImage.Rows rows = null;
+        if (model instanceof IndexColorModel) {
+            rows = indexed((IndexColorModel) model, raster);
+        } else if (model instanceof DirectColorModel) {
+            rows = packed(model, raster);
+        } else if (model instanceof ComponentColorModel) {
+            rows = components(model, raster);
+        }
+        return (rows != null) ? rows : converted(img);
+    }
+
+    // reader of interleaved or banded components of gray or RGB images, null
+    // for other color spaces and sample types
+    private static BandedImage.Rows components(ColorModel model, WritableRaster raster) {
+        if (!(raster.getSampleModel() instanceof ComponentSampleModel) || !plainColorSpace(model)) {
+            return null;
+        }
+        ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        int numBands = sm.getNumBands();
+        if (numBands != model.getNumComponents() || numBands > 4) {
+            return null;
+        }
+        int[] bankIndices = sm.getBankIndices();
+        int[] bandOffsets = sm.getBandOffsets();
+        int[] base = new int[numBands];
+        int[] sizes = new int[numBands];
+        byte[][] bytes = (buffer instanceof DataBufferByte) ? new byte[numBands][] : null;
+        short[][] shorts = (buffer instanceof DataBufferUShort) ? new short[numBands][] : null;
+        if (bytes == null && shorts == null) {
+            return null;
+        }
+        for (int b = 0; b < numBands; b++) {
+            int bank = bankIndices[b];
+            if (bytes != null) {
+                bytes[b] = ((DataBufferByte) buffer).getData(bank);
+            } else {
+                shorts[b] = ((DataBufferUShort) buffer).getData(bank);
+            }
+            base[b] = buffer.getOffsets()[bank] + bandOffsets[b] + origin(raster, sm.getScanlineStride(), sm.getPixelStride());
+            sizes[b] = model.getComponentSize(b);
+        }
+        return new Components(raster.getWidth(), numBands, bytes, shorts, base, sm.getScanlineStride(), sm.getPixelStride(), sizes, model.isAlphaPremultiplied());
+    }
+
+    // reader of pixels packed into single elements of RGB images, null for
+    // other color spaces and layouts
+    private static BandedImage.Rows packed(ColorModel model, WritableRaster raster) {
+        if (!(raster.getSampleModel() instanceof SinglePixelPackedSampleModel) || !plainColorSpace(model)) {
+            return null;
+        }
+        SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        if (sm.getNumBands() != model.getNumComponents() || sm.getNumBands() < 3 || sm.getNumBands() > 4) {
+            return null;
+        }
+        if (!(buffer instanceof DataBufferInt || buffer instanceof DataBufferUShort || buffer instanceof DataBufferByte)) {
+            return null;
+        }
+        int base = buffer.getOffset() + origin(raster, sm.getScanlineStride(), 1);
+        return new Packed(raster.getWidth(), buffer, base, sm.getScanlineStride(), sm.getBitMasks(), sm.getBitOffsets(), sm.getSampleSize(), model.isAlphaPremultiplied());
+    }
+
+    // reader of indexed pixels, one per byte or short or several per byte,
+    // null for other layouts
+    private static BandedImage.Rows indexed(IndexColorModel model, WritableRaster raster) {
+        SampleModel sm = raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        int bits = sm.getSampleSize(0);
+        if (sm.getNumBands() != 1 || bits > 16) {
+            return null;
+        }
+        // indices past the end of the map are opaque black
+        int[] colors = new int[1 << bits];
+        int mapSize = Math.min(model.getMapSize(), colors.length);
+        int[] map = new int[model.getMapSize()];
+        model.getRGBs(map);
+        System.arraycopy(map, 0, colors, 0, mapSize);
+        for (int i = mapSize; i < colors.length; i++) {
+            colors[i] = 0xff000000;
+        }
+
+        int width = raster.getWidth();
+        int dx = -raster.getSampleModelTranslateX();
+        int dy = -raster.getSampleModelTranslateY();
+        if (sm instanceof MultiPixelPackedSampleModel && buffer instanceof DataBufferByte) {
+            MultiPixelPackedSampleModel packed = (MultiPixelPackedSampleModel) sm;
+            int firstBit = packed.getDataBitOffset() + dx * bits;
+            int base = buffer.getOffset() + dy * packed.getScanlineStride();
+            return new Indexed(width, colors, buffer, base, packed.getScanlineStride(), 0, firstBit, bits, true);
+        }
+        if (sm instanceof ComponentSampleModel && (buffer instanceof DataBufferByte || buffer instanceof DataBufferUShort)) {
+            ComponentSampleModel component = (ComponentSampleModel) sm;
+            int bank = component.getBankIndices()[0];
+            if (bank != 0) {
+                return null;
+            }
+            int base = buffer.getOffsets()[bank] + component.getBandOffsets()[0] + origin(raster, component.getScanlineStride(), component.getPixelStride());
+            return new Indexed(width, colors, buffer, base, component.getScanlineStride(), component.getPixelStride(), 0, bits, false);
+        }
+        return null;
+    }
+
+    // reader converting any other image to sRGB a band of rows at a time
+    private static BandedImage.Rows converted(BufferedImage img) {
+        ColorConvertOp op = new ColorConvertOp(null);
+        int width = img.getWidth();
+        return (y0, rows, dest) -> {
+            WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(dest, width * rows), width, rows, width, ARGB_MASKS, null);
+            BufferedImage band = new BufferedImage(ColorModel.getRGBdefault(), raster, false, null);
+            op.filter(img.getSubimage(0, y0, width, rows), band);
+        };
+    }
+
+    // whether components of model are gray or RGB values as stored, followed
+    // by alpha if any
+    private static boolean plainColorSpace(ColorModel model) {
+        ColorSpace space = model.getColorSpace();
+        return space.getType() == ColorSpace.TYPE_RGB || space.getType() == ColorSpace.TYPE_GRAY;
+    }
+
+    // index of the top left pixel of raster relative to the start of its
+    // bank, rasters of subimages start inside the bank of their parent
+    private static int origin(Raster raster, int scanline, int pixelStride) {
+        return -raster.getSampleModelTranslateY() * scanline - raster.getSampleModelTranslateX() * pixelStride;
+    }
+
+    // samples of given bit depth scaled to 8 bits, in place
+    private static void scale(int[] samples, int length, int size) {
+        if (size == 8) {
+            return;
+        }
+        int max = (1 << size) - 1;
+        for (int i = 0; i < length; i++) {
+            samples[i] = (samples[i] * 255 + max / 2) / max;
+        }
+    }
+
+    // divide premultiplied color components of packed pixels by their alpha
+    private static void unpremultiply(int[] argb, int length) {
+        for (int i = 0; i < length; i++) {
+            int v = argb[i];
+            int a = v >>> 24;
+            if (a == 0 || a == 255) {
+                continue;
+            }
+            int r = Math.min(255, (((v >> 16) & 0xff) * 255 + a / 2) / a);
+            int g = Math.min(255, (((v >> 8) & 0xff) * 255 + a / 2) / a);
+            int b = Math.min(255, ((v & 0xff) * 255 + a / 2) / a);
+            argb[i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+}
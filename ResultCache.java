@@ -0,0 +1,175 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: ResultCache.java
+/*
+/* ResultCache objects keep the results of each level on disk between runs,
+/* addressed by a hash of the input pixels and the parameters of the level, so
+/* reruns over the same image with a different depth or level progression only
+/* compute the levels not seen before. Results are stored as deflated cell
+/* grids, and the least recently used entries are deleted once the cache
+/* exceeds its size limit.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class ResultCache {
+
+    // extension of cache entries
+    private static final String SUFFIX = ".bin";
+
+    // directory holding cache entries
+    private final File dir;
+    // maximum number of bytes kept on disk
+    private final long maxBytes;
+
+    // counters for reporting
+    private int hits;
+    private int misses;
+    private int evicted;
+
+    // constructor
+    public ResultCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+    }
+
+    // hash of image dimensions and packed ARGB pixels, identifying an input
+    public static String hash(int width, int height, int[] argb) {
+        MessageDigest digest = digest();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        buffer.putInt(width).putInt(height);
+        for (int k = 0; k < width * height; k++) {
+            if (buffer.remaining() < 4) {
+                digest.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putInt(argb[k]);
+        }
+        digest.update(buffer.array(), 0, buffer.position());
+        return hex(digest.digest());
+    }
+
+    // key of a single level of given input and cell size, shared by every
+    // color space since the cell grid does not depend on it
+    public static String levelKey(String input, int size) {
+        return hex(digest().digest((input + "/" + size).getBytes()));
+    }
+
+    // read entry holding the grid of an image of given dimensions at given
+    // cell size, returns null if there is no such entry or it cannot be read
+    public CellGrid get(String key, int width, int height, int size) {
+        File file = new File(dir, key + SUFFIX);
+        if (!file.isFile()) {
+            count(false);
+            return null;
+        }
+        CellGrid grid;
+        try {
+            grid = CellGrid.read(file, width, height, size);
+        } catch (IOException e) {
+            System.out.println(e);
+            grid = null;
+        }
+        if (grid == null) {
+            count(false);
+            return null;
+        }
+        // mark entry as most recently used
+        file.setLastModified(System.currentTimeMillis());
+        count(true);
+        return grid;
+    }
+
+    // store grid under key, then evict least recently used entries beyond
+    // the size limit
+    public void put(String key, CellGrid grid) {
+        File file = new File(dir, key + SUFFIX);
+        // write to temporary file first so readers never see partial entries
+        File temp = new File(dir, key + ".tmp");
+        try {
+            grid.write(temp);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println(e);
+            temp.delete();
+            return;
+        }
+        evict();
+    }
+
+    // delete least recently used entries until cache fits in its size limit
+    private synchronized void evict() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        if (bytes <= maxBytes) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int f = 0; f < files.length && bytes > maxBytes; f++) {
+            bytes -= files[f].length();
+            if (files[f].delete()) {
+                evicted++;
+            }
+        }
+    }
+
+    // delete every entry
+    public synchronized void clear() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    // utility stringifying function reporting cache usage
+    public synchronized String toString() {
+        return "cache: " + hits + " hits, " + misses + " misses, " + evicted + " evicted";
+    }
+
+    // update hit or miss counter
+    private synchronized void count(boolean hit) {
+        if (hit) {
+            hits++;
+        } else {
+            misses++;
+        }
+    }
+
+    // SHA-256 digest, available on every Java platform
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // hexadecimal representation of bytes
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
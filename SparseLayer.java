@@ -0,0 +1,116 @@
+import java.util.Arrays;
+
+/*----------------------------------------------------------------------------*/
+/*
+/* File: SparseLayer.java
+/*
+/* SparseLayer objects store a mostly transparent image as horizontal runs of
+/* constant color on each row. Pixels not covered by any run take a single
+/* fill value, so layers such as the radiused channels, which are transparent
+/* outside their circles, cost memory and compositing time only for the
+/* pixels that are actually drawn.
+/*
+/* Author: Porter Sherman
+/*
+/*----------------------------------------------------------------------------*/
+
+public class SparseLayer {
+
+    // ints stored per span: x, length and packed ARGB color
+    private static final int SPAN = 3;
+
+    // width of layer
+    private final int width;
+    // height of layer
+    private final int height;
+    // packed ARGB value of pixels outside every span
+    private final int fill;
+    // spans of each row, ordered by x
+    private final int[][] spans;
+    // number of ints used in each row
+    private final int[] counts;
+
+    // constructor for empty layer
+    public SparseLayer(int width, int height, int fill) {
+        this.width = width;
+        this.height = height;
+        this.fill = fill;
+        this.spans = new int[height][];
+        this.counts = new int[height];
+    }
+
+    // getter for width
+    public int getWidth() {
+        return this.width;
+    }
+
+    // getter for height
+    public int getHeight() {
+        return this.height;
+    }
+
+    // getter for fill value
+    public int getFill() {
+        return this.fill;
+    }
+
+    // getter for spans of row, stored as x, length, color triples
+    public int[] getSpans(int y) {
+        return (spans[y] != null) ? spans[y] : new int[0];
+    }
+
+    // getter for number of spans in row
+    public int getSpanCount(int y) {
+        return counts[y] / SPAN;
+    }
+
+    // add run of pixels to row, runs must be added in increasing x order and
+    // are merged with the previous run when contiguous and of the same color
+    public void addSpan(int y, int x, int length, int argb) {
+        int[] row = spans[y];
+        int count = counts[y];
+        if (count > 0 && row[count - 1] == argb && row[count - 3] + row[count - 2] == x) {
+            row[count - 2] += length;
+            return;
+        }
+        if (row == null) {
+            row = spans[y] = new int[4 * SPAN];
+        } else if (count == row.length) {
+            row = spans[y] = Arrays.copyOf(row, row.length * 2);
+        }
+        row[count] = x;
+        row[count + 1] = length;
+        row[count + 2] = argb;
+        counts[y] = count + SPAN;
+    }
+
+    // number of pixels covered by spans
+    public long getCoveredPixels() {
+        long covered = 0;
+        for (int j = 0; j < height; j++) {
+            for (int k = 0; k < counts[j]; k += SPAN) {
+                covered += spans[j][k + 1];
+            }
+        }
+        return covered;
+    }
+
+    // expand into packed ARGB array in row-major order
+    public int[] toPacked(int[] argb) {
+        return toPacked(0, height, argb);
+    }
+
+    // expand rows from y0 into packed ARGB array in row-major order, starting
+    // at its first element
+    public int[] toPacked(int y0, int rows, int[] argb) {
+        Arrays.fill(argb, 0, width * rows, fill);
+        for (int j = y0; j < y0 + rows; j++) {
+            int[] row = spans[j];
+            for (int k = 0; k < counts[j]; k += SPAN) {
+                int from = (j - y0) * width + row[k];
+                Arrays.fill(argb, from, from + row[k + 1], row[k + 2]);
+            }
+        }
+        return argb;
+    }
+}
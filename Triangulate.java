@@ -27,8 +27,7 @@ public class Triangulate {
     public static void triangulate(BufferedImage inImg) throws IOException {
         ImageData imgData = new ImageData(inImg);
 
-        ImageData.Map map = p -> p.setPixel(new Pixel(p.getLum(), 255));
-        imgData.applyMap(map);
+        imgData.applyGrayscale(LookupTable.opaque());
 
         // int[] kernel = {
         //     -1, -1, -1,
@@ -69,15 +68,8 @@ public class Triangulate {
         ImageData.IndexedMap copyMap = (p, index) -> p.setPixel(res[index]);
         imgData.applyIndexedMap(copyMap);
 
-        BufferedImage outImg = new BufferedImage(
-            inImg.getWidth(),
-            inImg.getHeight(),
-            BufferedImage.TYPE_INT_ARGB
-        );
-
-        imgData.toImage(outImg);
-        File outFile = new File("outTriangulate.png");
-        ImageIO.write(outImg, "png", outFile);
+        int[] argb = imgData.toPacked(new int[imgData.getWidth() * imgData.getHeight()]);
+        PngWriter.write(argb, imgData.getWidth(), imgData.getHeight(), true, new File("outTriangulate.png"));
     }
 
     private static double[] normalizeKernel(int[] kernel) {